@@ -0,0 +1,34 @@
+package com.hydna;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *  Runs all benchmarks with GC profiling enabled. An optional regular
+ *  expression selects which benchmarks to run, an optional second
+ *  argument names a JSON result file to compare against later runs.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : "com\\.hydna\\..*";
+        OptionsBuilder builder = new OptionsBuilder();
+
+        builder.include(include)
+               .addProfiler(GCProfiler.class)
+               .warmupIterations(5)
+               .measurementIterations(5)
+               .forks(1);
+
+        if (args.length > 1) {
+            builder.result(args[1])
+                   .resultFormat(
+                       org.openjdk.jmh.results.format.ResultFormatType.JSON);
+        }
+
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
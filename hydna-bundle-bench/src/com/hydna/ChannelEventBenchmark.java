@@ -0,0 +1,45 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *  Measures UTF-8 decoding of event payloads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChannelEventBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int length;
+
+    ChannelEvent event;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char)('a' + (i % 26)));
+        }
+        event = new ChannelData(null,
+                                ContentType.UTF8,
+                                0,
+                                ByteBuffer.wrap(builder.toString()
+                                                       .getBytes("UTF-8")));
+    }
+
+    @Benchmark
+    public String getString() {
+        return event.getString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ *  Measures the hand-off of events through Channel.addEvent to a thread
+ *  blocked in Channel.nextEvent. An echo thread moves each event from
+ *  one channel to another, so each operation is two hand-offs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventHandoffBenchmark {
+
+    Channel ping;
+    Channel pong;
+    ChannelEvent event;
+    Thread echo;
+
+    @Setup
+    public void setup() {
+        ping = new Channel();
+        pong = new Channel();
+        ping.openSuccess(1, ContentType.BINARY, null);
+        pong.openSuccess(2, ContentType.BINARY, null);
+
+        event = new ChannelData(ping,
+                                ContentType.BINARY,
+                                0,
+                                ByteBuffer.allocate(16));
+
+        echo = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (;;) {
+                        pong.addEvent(ping.nextEvent());
+                    }
+                } catch (Exception e) {
+                    // Channel destroyed by tearDown.
+                }
+            }
+        });
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ping.destroy(new ChannelError("Benchmark done"));
+        echo.join();
+    }
+
+    @Benchmark
+    public ChannelEvent roundTrip() throws Exception {
+        ping.addEvent(event);
+        return pong.nextEvent();
+    }
+}
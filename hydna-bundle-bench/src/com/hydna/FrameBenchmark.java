@@ -0,0 +1,50 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *  Measures encoding of outbound frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameBenchmark {
+
+    @Param({"16", "1024", "16384"})
+    int payloadSize;
+
+    ByteBuffer payload;
+
+    @Setup
+    public void setup() {
+        payload = ByteBuffer.allocate(payloadSize);
+    }
+
+    @Benchmark
+    public Frame encodeData() {
+        payload.rewind();
+        return Frame.create(0x11223344,
+                            ContentType.BINARY,
+                            Frame.DATA,
+                            0,
+                            payload);
+    }
+
+    @Benchmark
+    public Frame encodeSignalEnd() {
+        return Frame.create(0x11223344,
+                            ContentType.UTF8,
+                            Frame.SIGNAL,
+                            Frame.SIG_END);
+    }
+}
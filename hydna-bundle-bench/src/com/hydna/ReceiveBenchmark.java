@@ -0,0 +1,83 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *  Measures header decode and dispatch of inbound frames, both to a
+ *  single channel and as a broadcast to all open channels. Events are
+ *  drained after each dispatch so that queues stay empty.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReceiveBenchmark {
+
+    @Param({"1", "100", "1000"})
+    int channelCount;
+
+    @Param({"64", "1024"})
+    int payloadSize;
+
+    Connection connection;
+    Channel[] channels;
+    ByteBuffer frame;
+    byte dataOp;
+
+    @Setup
+    public void setup() {
+        connection = new Connection("bench", "localhost", (short)0);
+        channels = new Channel[channelCount];
+
+        for (int i = 0; i < channelCount; i++) {
+            channels[i] = new Channel();
+            channels[i].openSuccess(i + 1, ContentType.BINARY, null);
+            connection.registerChannel(i + 1, channels[i]);
+        }
+
+        frame = Frame.create(0,
+                             ContentType.BINARY,
+                             Frame.DATA,
+                             0,
+                             ByteBuffer.allocate(payloadSize)).getData();
+
+        dataOp = (byte)((ContentType.BINARY << Frame.CTYPE_BITPOS) |
+                        (Frame.DATA << Frame.OP_BITPOS));
+    }
+
+    @Benchmark
+    public int decodeHeader() {
+        frame.rewind();
+        int size = frame.getShort() & 0xFFFF;
+        int channelPtr = frame.getInt();
+        byte of = frame.get();
+        return size ^ channelPtr ^ of;
+    }
+
+    @Benchmark
+    public void dispatchData(Blackhole bh) throws Exception {
+        Channel channel = channels[channelCount - 1];
+        connection.dispatchFrame(channelCount,
+                                 dataOp,
+                                 ByteBuffer.allocate(payloadSize));
+        bh.consume(channel.nextEvent());
+    }
+
+    @Benchmark
+    public void dispatchBroadcast(Blackhole bh) throws Exception {
+        connection.dispatchFrame(0, dataOp, ByteBuffer.allocate(payloadSize));
+        for (Channel channel : channels) {
+            bh.consume(channel.nextEvent());
+        }
+    }
+}
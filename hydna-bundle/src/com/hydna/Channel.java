@@ -5,11 +5,17 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -19,23 +25,61 @@ import java.util.concurrent.Semaphore;
  */
 public class Channel {
 
-    private int m_channelPtr = 0;
-    private String m_path;
+    public static final int MAX_PRIORITY = 7;
 
-    private Connection m_connection = null;
-    private boolean m_connected = false;
-    private boolean m_closing = false;
+    public static final long DEFAULT_PRIORITY_AGING = 100;
 
-    private int m_mode;
+    private static final Channel[] NO_SHARERS = new Channel[0];
+
+    private volatile String m_path;
+
+    // Replaced as a whole while holding the monitor, read without it.
+    private volatile ChannelState m_state = ChannelState.INITIAL;
 
     private Queue<ChannelSignal> m_signalQueue;
     private Queue<ChannelEvent> m_eventQueue = null;
+    private final AtomicInteger m_queueDepth = new AtomicInteger();
+    private volatile boolean m_recycleEvents = false;
+    private volatile int m_queueLimit = 0;
+    private volatile ChannelListener m_listener = null;
+
+    // Replaced as a whole by addFilter() and removeFilter().
+    private volatile ChannelFilter[] m_filters = new ChannelFilter[0];
+
+    // Local channels sharing the server channel opened by this one, and
+    // the channel it was handed over to on close. Only changed while
+    // holding the lock of the connection.
+    private volatile Channel[] m_sharers = NO_SHARERS;
+    private volatile Channel m_successor = null;
+
+    // The latest waiting message per key, while conflating. The queue
+    // then holds one ConflatedSlot per key in its place.
+    private volatile KeyExtractor m_conflation = null;
+    private final ConcurrentMap<Object, ChannelEvent> m_conflated =
+        new ConcurrentHashMap<Object, ChannelEvent>();
+
+    // Data messages per priority, allocated when priority delivery is
+    // first enabled.
+    private volatile Queue<ChannelEvent>[] m_priorityQueues = null;
+    private volatile boolean m_priorityDelivery = false;
+    private volatile long m_agingNanos =
+        TimeUnit.MILLISECONDS.toNanos(DEFAULT_PRIORITY_AGING);
 
     private ChannelEvent m_openEvent = null;
+
+    // The open response of the server channel, for channels sharing it.
+    private int m_openType = ContentType.UTF8;
+    private ByteBuffer m_openData = null;
     private ChannelEvent m_endEvent = null;
     private ChannelError m_error = null;
 
+    private EndpointGroup m_group = null;
+    private EndpointGroup.Endpoint m_endpoint = null;
+    private ByteBuffer m_pathBuffer = null;
+    private ByteBuffer m_token = null;
+
     private final Semaphore m_waitLock = new Semaphore(0, true);
+    private final Semaphore m_eventLock = new Semaphore(0);
 
     /**
      *  Initializes a new Channel instance
@@ -44,12 +88,254 @@ public class Channel {
         m_eventQueue = new ConcurrentLinkedQueue<ChannelEvent>();
     }
 
+    /**
+     *  Set how long a connection is kept open after its last channel is
+     *  closed, so that a channel opened to the same host and port in the
+     *  meantime can reuse it. The default is 0, which closes connections
+     *  right away, unless the system property "com.hydna.connectionLinger"
+     *  is set.
+     *
+     *  @param linger The linger period in milliseconds.
+     */
+    public static void setConnectionLinger(long linger) {
+        Connection.setLinger(linger);
+    }
+
+    /**
+     *  Returns the linger period of idle connections.
+     *
+     *  @return The linger period in milliseconds.
+     */
+    public static long getConnectionLinger() {
+        return Connection.getLinger();
+    }
+
+    /**
+     *  Enable recycling of data events. Data events and their payload
+     *  buffers are then taken from a pool, and the consumer must call
+     *  ChannelEvent.release() once done with each event, after which the
+     *  event and its data must not be used. Events that are never
+     *  released are not returned to the pool, see EventPool for leak
+     *  detection.
+     *
+     *  @param recycleEvents True to enable recycling.
+     */
+    public void setRecycleEvents(boolean recycleEvents) {
+        m_recycleEvents = recycleEvents;
+    }
+
+    /**
+     *  Checks if data events are recycled.
+     *
+     *  @return True if recycling is enabled.
+     */
+    public boolean isRecycleEvents() {
+        return m_recycleEvents;
+    }
+
+    /**
+     *  Bound the event queue of the channel. While the queue of every
+     *  open channel on a connection holds at least its limit, the
+     *  connection stops reading from the socket, so that the server is
+     *  held back by TCP flow control rather than the queues growing
+     *  without bound. Reading resumes once an event is taken from any
+     *  of the queues.
+     *
+     *  The limit is soft: a frame already being read is still queued,
+     *  and channels without a limit keep the connection reading.
+     *
+     *  @param limit The maximum number of queued events, or 0 for no
+     *               limit, which is the default.
+     */
+    public void setQueueLimit(int limit) {
+        Connection connection;
+
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+
+        m_queueLimit = limit;
+
+        if ((connection = m_state.connection) != null) {
+            connection.resumeReading();
+        }
+    }
+
+    /**
+     *  Returns the event queue limit.
+     *
+     *  @return The limit, or 0 if the queue is unbounded.
+     */
+    public int getQueueLimit() {
+        return m_queueLimit;
+    }
+
+    /**
+     *  Add a filter for received data messages. A message is only
+     *  queued if every filter accepts it. Rejected messages are dropped
+     *  before an event is created or a consumer is woken up, and are
+     *  counted in ConnectionMetrics.
+     *
+     *  @param filter The filter.
+     */
+    public synchronized void addFilter(ChannelFilter filter) {
+        ChannelFilter[] filters = m_filters;
+        ChannelFilter[] updated;
+
+        if (filter == null) {
+            throw new NullPointerException();
+        }
+
+        updated = new ChannelFilter[filters.length + 1];
+        System.arraycopy(filters, 0, updated, 0, filters.length);
+        updated[filters.length] = filter;
+
+        m_filters = updated;
+    }
+
+    /**
+     *  Remove a filter.
+     *
+     *  @param filter The filter.
+     *  @return True if the filter was added to this channel.
+     */
+    public synchronized boolean removeFilter(ChannelFilter filter) {
+        ChannelFilter[] filters = m_filters;
+        ChannelFilter[] updated;
+
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] == filter) {
+                updated = new ChannelFilter[filters.length - 1];
+                System.arraycopy(filters, 0, updated, 0, i);
+                System.arraycopy(filters, i + 1, updated, i,
+                                 filters.length - i - 1);
+                m_filters = updated;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     *  Deliver data messages by priority instead of in arrival order.
+     *  nextEvent() and pollEvent() then return the waiting message with
+     *  the highest priority, MAX_PRIORITY being the highest, and messages
+     *  of the same priority in order. Signals are delivered ahead of data
+     *  messages.
+     *
+     *  To keep a steady stream of urgent messages from starving the
+     *  rest, a waiting message is moved up one priority for every aging
+     *  period it has waited, see setPriorityAging().
+     *
+     *  @param priorityDelivery True to deliver by priority.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public synchronized void setPriorityDelivery(boolean priorityDelivery) {
+        Queue<ChannelEvent>[] queues;
+
+        if (priorityDelivery && m_priorityQueues == null) {
+            queues = new Queue[MAX_PRIORITY + 1];
+
+            for (int i = 0; i <= MAX_PRIORITY; i++) {
+                queues[i] = new ConcurrentLinkedQueue<ChannelEvent>();
+            }
+
+            m_priorityQueues = queues;
+        }
+
+        m_priorityDelivery = priorityDelivery;
+    }
+
+    /**
+     *  Checks if data messages are delivered by priority.
+     *
+     *  @return True if priority delivery is enabled.
+     */
+    public boolean isPriorityDelivery() {
+        return m_priorityDelivery;
+    }
+
+    /**
+     *  Set the aging period of priority delivery. The default is
+     *  DEFAULT_PRIORITY_AGING.
+     *
+     *  @param aging The aging period in milliseconds, or 0 to always
+     *               deliver strictly by priority.
+     */
+    public void setPriorityAging(long aging) {
+        if (aging < 0) {
+            throw new IllegalArgumentException("aging must not be negative");
+        }
+
+        m_agingNanos = TimeUnit.MILLISECONDS.toNanos(aging);
+    }
+
+    /**
+     *  Returns the aging period of priority delivery.
+     *
+     *  @return The aging period in milliseconds.
+     */
+    public long getPriorityAging() {
+        return TimeUnit.NANOSECONDS.toMillis(m_agingNanos);
+    }
+
+    /**
+     *  Conflate data messages by key. While a message waits in the event
+     *  queue, a newer message with the same key replaces it and takes
+     *  its place in the queue, so a consumer that falls behind only gets
+     *  the latest message of each key. Signals and messages without a
+     *  key are queued as usual.
+     *
+     *  The extractor runs on the receiving thread of the connection, and
+     *  must be fast and not throw.
+     *
+     *  @param extractor The key extractor, or null to queue every
+     *                   message, which is the default.
+     */
+    public void setConflation(KeyExtractor extractor) {
+        m_conflation = extractor;
+    }
+
+    /**
+     *  Returns the key extractor used for conflation.
+     *
+     *  @return The extractor, or null if messages are not conflated.
+     */
+    public KeyExtractor getConflation() {
+        return m_conflation;
+    }
+
+    /**
+     *  Set a listener to be notified when events are available, for use
+     *  together with pollEvent(). A channel has one listener, which is
+     *  replaced when the channel is registered with a ChannelSelector.
+     *
+     *  @param listener The listener, or null to remove it.
+     */
+    public void setListener(ChannelListener listener) {
+        m_listener = listener;
+
+        if (listener != null && hasEvents()) {
+            listener.eventsAvailable(this);
+        }
+    }
+
+    /**
+     *  Returns the event listener.
+     *
+     *  @return The listener, or null if none is set.
+     */
+    public ChannelListener getListener() {
+        return m_listener;
+    }
+
     /**
      *  Get the underlying Path for this Channel
      *
      *  @return The path of this Channel.
      */
-    synchronized public String getPath() {
+    public String getPath() {
         return m_path;
     }
 	
@@ -58,8 +344,8 @@ public class Channel {
      *
      *  @return The connected state.
      */
-    synchronized public boolean isConnected() {
-        return m_connected;
+    public boolean isConnected() {
+        return m_state.connected;
     }
 
     /**
@@ -67,8 +353,8 @@ public class Channel {
      *
      *  @return The closing state.
      */
-    synchronized public boolean isClosing() {
-        return m_closing;
+    public boolean isClosing() {
+        return m_state.closing;
     }
 
     /**
@@ -76,10 +362,8 @@ public class Channel {
      *
      *  @return True if channel is readable.
      */
-    synchronized public boolean isReadable() {
-        return m_connected &&
-               m_closing == false &&
-               ((m_mode & ChannelMode.READ) == ChannelMode.READ);
+    public boolean isReadable() {
+        return m_state.isReadable();
     }
 
     /**
@@ -87,10 +371,8 @@ public class Channel {
      *
      *  @return True if channel is writable.
      */
-    synchronized public boolean isWritable() {
-        return m_connected &&
-               m_closing == false &&
-               ((m_mode & ChannelMode.WRITE) == ChannelMode.WRITE);
+    public boolean isWritable() {
+        return m_state.isWritable();
     }
 
     /**
@@ -98,10 +380,8 @@ public class Channel {
      *
      *  @return True if channel has signal support.
      */
-    synchronized public boolean isEmitable() {
-        return m_connected &&
-               m_closing == false &&
-               ((m_mode & ChannelMode.EMIT) == ChannelMode.EMIT);
+    public boolean isEmitable() {
+        return m_state.isEmitable();
     }
 
     /**
@@ -128,45 +408,23 @@ public class Channel {
      *  Connects the channel to the specified channel. If the connection 
      *  fails, an exception is thrown.
      *
+     *  The URL may list several hosts separated by commas, for example
+     *  "http://edge1:80,edge2:7010/chat". The channel is then opened
+     *  through a shared EndpointGroup for those hosts.
+     *
      *  @param urlExpr The URL to connect to,
      *  @param mode The mode in which to open the channel.
      *  @param token An optional token.
      */
     public ChannelEvent connect(String urlExpr, int mode)
         throws ChannelError, InterruptedException {
-        Connection connection;
-        Frame frame;
-        OpenRequest request;
-        ChannelEvent openEvent;
-        ChannelError error;
         ByteBuffer token = null;
         ByteBuffer path = null;
-  
-        synchronized (this) {
-            if (m_connection != null) {
-                throw new ChannelError("Already connected");
-            }
+        String tokens = "";
 
-            if (m_closing) {
-                throw new ChannelError("Channel is closing");
-            }
-        }
+        checkConnectable(mode);
 
-        if (mode < ChannelMode.LISTEN ||
-            mode > ChannelMode.READWRITEEMIT) {
-            throw new ChannelError("Invalid channel mode");
-        }
-  
-        m_error = null;
-        m_endEvent = null;
-  
-        m_mode = mode;
-  
         URL url = URL.parse(urlExpr);
-        String tokens = "";
-        String chs = "";
-        int ch;
-        int pos;
     
         // Host can be on the form "http://auth@localhost:80/x00112233?token"
     
@@ -183,7 +441,89 @@ public class Channel {
             throw new Error(url.getError());
         }
 
-        m_path = url.getPath();
+        path = encodePath(url.getPath());
+
+        tokens = url.getToken();
+
+        if (tokens != "") {
+            try {
+                token = ByteBuffer.wrap(tokens.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new ChannelError("Unable to encode token data");
+            }
+        }
+
+        if (url.getHost().indexOf(',') != -1) {
+            return connectGroup(EndpointGroup.forHosts(url.getHost()),
+                                path, token, mode);
+        }
+
+        return open(url.getHost(), url.getPort(), path, token, mode);
+    }
+
+    /**
+     *  Connects the channel to the specified path on the best endpoint
+     *  of a group. If the connection to that endpoint later fails, the
+     *  channel is re-opened on the next best endpoint. If no endpoint
+     *  can be connected, an exception is thrown.
+     *
+     *  With a ConsistentHashGroup the endpoint is chosen by the path
+     *  instead, so that channels are sharded over a cluster.
+     *
+     *  @param group The endpoints to choose from.
+     *  @param path The path of the channel, optionally followed by
+     *              "?token".
+     *  @param mode The mode in which to open the channel.
+     */
+    public ChannelEvent connect(EndpointGroup group, String path, int mode)
+        throws ChannelError, InterruptedException {
+        ByteBuffer token = null;
+        int pos;
+
+        checkConnectable(mode);
+
+        pos = path.lastIndexOf("?");
+        if (pos != -1) {
+            try {
+                token = ByteBuffer.wrap(path.substring(pos + 1)
+                                            .getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new ChannelError("Unable to encode token data");
+            }
+            path = path.substring(0, pos);
+        }
+
+        return connectGroup(group, encodePath(path), token, mode);
+    }
+
+    private void checkConnectable(int mode) throws ChannelError {
+        synchronized (this) {
+            if (m_state.connection != null) {
+                throw new ChannelError("Already connected");
+            }
+
+            if (m_state.closing) {
+                throw new ChannelError("Channel is closing");
+            }
+        }
+
+        if (mode < ChannelMode.LISTEN ||
+            mode > ChannelMode.READWRITEEMIT) {
+            throw new ChannelError("Invalid channel mode");
+        }
+  
+        m_error = null;
+        m_endEvent = null;
+
+        synchronized (this) {
+            m_state = m_state.withMode(mode);
+            m_group = null;
+            m_endpoint = null;
+        }
+    }
+
+    private ByteBuffer encodePath(String path) throws ChannelError {
+        m_path = path;
 
         if (m_path.length() == 0 || m_path.charAt(0) != '/') {
             m_path = "/" + m_path;
@@ -196,51 +536,241 @@ public class Channel {
         }
 
         try {
-            path = ByteBuffer.wrap(m_path.getBytes("US-ASCII"));
+            return ByteBuffer.wrap(m_path.getBytes("US-ASCII"));
         } catch (UnsupportedEncodingException e) {
             throw new ChannelError("Unable to encode path");
         }
+    }
 
-        tokens = url.getToken();
+    /**
+     *  Try the endpoints of a group in order, until the channel is open.
+     *  An endpoint that can not be reached is reported as failed. An
+     *  open request denied by the server is not retried.
+     */
+    private ChannelEvent connectGroup(EndpointGroup group,
+                                      ByteBuffer path,
+                                      ByteBuffer token,
+                                      int mode)
+        throws ChannelError, InterruptedException {
+        ChannelError last = null;
 
-        connection = Connection.getConnection(url.getHost(), url.getPort());
-        m_connection = connection;
+        synchronized (this) {
+            m_group = group;
+            m_pathBuffer = path;
+            m_token = token;
+        }
 
-        // Ref count
-        connection.allocChannel();
+        for (EndpointGroup.Endpoint endpoint : group.candidates(m_path)) {
+            synchronized (this) {
+                m_endpoint = endpoint;
+            }
 
-        if (tokens != "") {
             try {
-                token = ByteBuffer.wrap(tokens.getBytes("UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                throw new ChannelError("Unable to encode token data");
+                return open(endpoint.getHost(),
+                            endpoint.getPort(),
+                            path,
+                            token,
+                            mode);
+            } catch (ChannelError e) {
+                if (e.getCode() >= 0) {
+                    throw e;
+                }
+
+                if (HydnaDebug.HYDNADEBUG) {
+                    DebugHelper.debugPrint("Channel",
+                                           0,
+                                           "Endpoint " + endpoint +
+                                               " failed: " + e.getMessage());
+                }
+
+                endpoint.failure();
+                last = e;
             }
         }
- 
-        request = new OpenRequest(this, path, mode, token);
 
-        connection.requestOpen(request);
+        throw last != null ? last : new ChannelError("No endpoints to connect to");
+    }
+
+    /**
+     *  Open the channel on a host.
+     */
+    private ChannelEvent open(String host,
+                              short port,
+                              ByteBuffer path,
+                              ByteBuffer token,
+                              int mode)
+        throws ChannelError, InterruptedException {
+        Connection connection;
+        ChannelEvent openEvent;
+        EndpointGroup.Endpoint endpoint;
+        CountDownLatch opening;
+        int sharedPtr;
 
-        connection.writeBytes(request.getResolveFrame());
+        // Ref count
+        connection = Connection.acquireConnection(host, port);
 
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Channel",
-                                   0,
-                                   "Acquire waitLock");
+        synchronized (this) {
+            m_state = m_state.withConnection(connection);
+            m_successor = null;
+            endpoint = m_group != null ? m_endpoint : null;
         }
 
-        m_waitLock.acquire();
+        // If another channel in this process has the path open on the
+        // connection, share its server channel instead of opening it
+        // again. If another channel is opening the path, wait for it, and
+        // then attach, or open the path if that open failed.
+        try {
+            for (;;) {
+                synchronized (this) {
+                    sharedPtr = connection.attachChannel(this, mode);
 
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Channel",
-                                   0,
-                                   "release waitLock");
+                    if (sharedPtr != 0) {
+                        m_state = m_state.attached(sharedPtr);
+                    }
+                }
+
+                if (sharedPtr != 0 ||
+                    (opening = connection.claimOpen(m_path)) == null) {
+                    break;
+                }
+
+                opening.await();
+            }
+        } catch (ChannelError e) {
+            synchronized (this) {
+                m_state = m_state.disconnected();
+            }
+            connection.deallocChannel(0);
+            throw e;
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                m_state = m_state.disconnected();
+            }
+            connection.deallocChannel(0);
+            throw e;
         }
 
-        if ((error = resetError()) != null) {
-            throw error;
+        if (sharedPtr != 0) {
+            if (endpoint != null) {
+                endpoint.success(0);
+            }
+
+            synchronized (this) {
+                openEvent = m_openEvent;
+                m_openEvent = null;
+            }
+
+            return openEvent;
         }
 
+        try {
+            return openPath(connection, path, token, mode, endpoint);
+        } finally {
+            connection.openFinished(m_path);
+        }
+    }
+
+    /**
+     *  Resolve and open the path on the server, once this channel has
+     *  claimed the open of the path on the connection.
+     */
+    private ChannelEvent openPath(Connection connection,
+                                  ByteBuffer path,
+                                  ByteBuffer token,
+                                  int mode,
+                                  EndpointGroup.Endpoint endpoint)
+        throws ChannelError, InterruptedException {
+        OpenRequest request;
+        ChannelEvent openEvent;
+        ChannelError error;
+        HydnaProbe probe;
+        HydnaTimer.Timeout timeout;
+        Integer cachedPtr;
+        long resolveStart;
+        long openStart;
+
+        // Duplicates, as encoding a frame consumes the buffers.
+        request = new OpenRequest(this,
+                                  path.duplicate(),
+                                  mode,
+                                  token != null ? token.duplicate() : null);
+
+        // A path resolved earlier on this connection goes straight to
+        // open. If the server rejects the cached pointer, the connection
+        // resolves the path again before failing the open.
+        cachedPtr = connection.getResolvedPointer(m_path);
+
+        if (cachedPtr != null) {
+            request.setChannelPtr(cachedPtr);
+            request.setCached(true);
+        }
+
+        try {
+            connection.requestOpen(request);
+        } catch (ChannelError e) {
+            synchronized (this) {
+                m_state = m_state.disconnected();
+            }
+            connection.deallocChannel(0);
+            throw e;
+        }
+
+        probe = HydnaProbes.getProbe();
+        resolveStart = System.nanoTime();
+
+        if (cachedPtr != null) {
+            openStart = resolveStart;
+
+            if (endpoint != null) {
+                endpoint.success(0);
+            }
+        } else {
+            timeout = scheduleTimeout(request,
+                                      HydnaTimeouts.getResolveTimeout(),
+                                      ChannelError.RESOLVE_TIMEOUT,
+                                      "Timed out while resolving the path");
+
+            connection.writeBytes(request.getResolveFrame());
+
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Channel",
+                                       0,
+                                       "Acquire waitLock");
+            }
+
+            m_waitLock.acquire();
+
+            if (timeout != null) {
+                timeout.cancel();
+            }
+
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Channel",
+                                       0,
+                                       "release waitLock");
+            }
+
+            openStart = System.nanoTime();
+
+            if ((error = resetError()) != null) {
+                if (probe != null) {
+                    probe.channelOpened(m_path, openStart - resolveStart,
+                                        0, error.getMessage());
+                }
+                throw error;
+            }
+
+            // The resolve is a plain round trip to the server.
+            if (endpoint != null) {
+                endpoint.success(openStart - resolveStart);
+            }
+        }
+
+        timeout = scheduleTimeout(request,
+                                  HydnaTimeouts.getOpenTimeout(),
+                                  ChannelError.OPEN_TIMEOUT,
+                                  "Timed out while opening the channel");
+
         connection.writeBytes(request.getFrame());
 
         if (HydnaDebug.HYDNADEBUG) {
@@ -251,13 +781,26 @@ public class Channel {
 
         m_waitLock.acquire();
 
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Channel",
                                    getChannelPtr(),
                                    "Release waitLock after resolve");
         }
 
-        if ((error = resetError()) != null) {
+        error = resetError();
+
+        if (probe != null) {
+            probe.channelOpened(m_path,
+                                openStart - resolveStart,
+                                System.nanoTime() - openStart,
+                                error != null ? error.getMessage() : null);
+        }
+
+        if (error != null) {
             throw error;
         }
 
@@ -268,6 +811,35 @@ public class Channel {
         return openEvent;
     }
 
+    /**
+     *  Start the next step of an open request, and fail the channel if
+     *  the server does not answer it in time.
+     *
+     *  @param request The open request.
+     *  @param delay The timeout in milliseconds, 0 for none.
+     *  @param code The error code on timeout.
+     *  @param message The error message on timeout.
+     *  @return The timeout, or null if none.
+     */
+    private HydnaTimer.Timeout scheduleTimeout(final OpenRequest request,
+                                               long delay,
+                                               final int code,
+                                               final String message) {
+        final int step = request.arm();
+
+        if (delay == 0) {
+            return null;
+        }
+
+        return HydnaTimer.schedule(new Runnable() {
+            public void run() {
+                if (request.complete(step)) {
+                    destroy(new ChannelError(message, code));
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
     /**
      *  Pop the next ChannelEvent in the event queue. The event is
      *  is either a ChannelData instance, a ChannelSignal instance 
@@ -284,22 +856,128 @@ public class Channel {
         ChannelEvent event;
         ChannelError error;
 
-        if ((error = resetError()) != null) {
-            throw error;
+        for (;;) {
+            if ((error = resetError()) != null) {
+                throw error;
+            }
+
+            if ((event = resetEndEvent()) != null) {
+                return event;
+            }
+
+            if ((event = takeEvent()) != null) {
+                return event;
+            }
+
+            m_eventLock.acquire();
+        }
+    }
+
+    /**
+     *  Removes the next Event from the queue without waiting.
+     *
+     *  @return The ChannelEvent that was removed from the queue,
+     *          or NULL if the queue was empty.
+     */
+    public ChannelEvent pollEvent() throws ChannelError {
+        ChannelEvent event;
+        ChannelError error;
+
+        if ((error = resetError()) != null) {
+            throw error;
+        }
+
+        if ((event = resetEndEvent()) != null) {
+            return event;
+        }
+
+        return takeEvent();
+    }
+
+    private ChannelEvent takeEvent() {
+        ChannelEvent event;
+        Connection connection;
+        int depth;
+        int limit;
+
+        for (;;) {
+            if ((event = m_eventQueue.poll()) == null &&
+                (event = pollByPriority()) == null) {
+                return null;
+            }
+
+            if (event instanceof ConflatedSlot) {
+                // Taking the message frees the key for a new slot.
+                event = m_conflated.remove(((ConflatedSlot)event).key);
+
+                if (event == null) {
+                    // Emptied by destroy().
+                    continue;
+                }
+            }
+
+            break;
+        }
+
+        // Consume the permit of this event, if not already consumed by
+        // a wake-up.
+        m_eventLock.tryAcquire();
+
+        depth = m_queueDepth.decrementAndGet();
+        limit = m_queueLimit;
+
+        // Let a connection paused on full queues read again, once this
+        // queue is below its limit.
+        if (limit > 0 &&
+            depth == limit - 1 &&
+            (connection = m_state.connection) != null) {
+            connection.resumeReading();
         }
 
-        if ((event = resetEndEvent()) != null) {
-            return event;
+        return event;
+    }
+
+    /**
+     *  Take the data message to deliver next, from the queue of the
+     *  highest priority, counting the time the head of each queue has
+     *  waited.
+     */
+    private ChannelEvent pollByPriority() {
+        Queue<ChannelEvent>[] queues = m_priorityQueues;
+        long aging = m_agingNanos;
+        long now = 0;
+        long score;
+        long best = -1;
+        int selected = -1;
+        ChannelEvent head;
+
+        if (queues == null) {
+            return null;
         }
 
-        event = m_eventQueue.poll();
+        if (aging > 0) {
+            now = System.nanoTime();
+        }
 
-        if (event == null) {
-            m_waitLock.acquire();
-            return nextEvent();
+        for (int priority = MAX_PRIORITY; priority >= 0; priority--) {
+            if ((head = queues[priority].peek()) == null) {
+                continue;
+            }
+
+            if (aging == 0) {
+                selected = priority;
+                break;
+            }
+
+            score = priority + (now - head.m_queuedAt) / aging;
+
+            if (score > best) {
+                best = score;
+                selected = priority;
+            }
         }
 
-        return event;
+        return selected < 0 ? null : queues[selected].poll();
     }
 
     /**
@@ -318,7 +996,19 @@ public class Channel {
             return true;
         }
 
-        return m_eventQueue.isEmpty() != true;
+        if (m_eventQueue.isEmpty() != true) {
+            return true;
+        }
+
+        if (m_priorityQueues != null) {
+            for (Queue<ChannelEvent> queue : m_priorityQueues) {
+                if (queue.isEmpty() != true) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -427,22 +1117,276 @@ public class Channel {
     }
 
     /**
-     *  Add an Event to the event queue.
+     *  Add an Event to the event queue, and to the queues of the local
+     *  channels sharing the server channel.
      *
      *  @param event The event to add to queue.
      */
     void addEvent(ChannelEvent event) {
-        boolean hasWaitingThread;
+        Channel successor = m_successor;
+        Channel[] sharers;
+
+        // A frame read just before the server channel was handed over.
+        if (successor != null) {
+            successor.addEvent(event.copyFor(successor));
+            event.release();
+            return;
+        }
 
-        m_eventQueue.add(event);
+        if ((sharers = m_sharers).length == 0) {
+            enqueue(event);
+            return;
+        }
 
-        synchronized (this) {
-            hasWaitingThread = m_waitLock.hasQueuedThreads();
+        // Filters of shared channels can not run on the read buffer,
+        // as each channel has its own. Every channel, this one included,
+        // gets a read-only view, so that none can change the payload
+        // under the others.
+        for (Channel sharer : sharers) {
+            sharer.deliver(event.copyFor(sharer));
         }
 
-        if (hasWaitingThread) {
-            m_waitLock.release();
+        deliver(event.copyFor(this));
+        event.release();
+    }
+
+    private void deliver(ChannelEvent event) {
+        if (event instanceof ChannelData &&
+            hasFilters() &&
+            accepts(event.getContentType(),
+                    ((ChannelData)event).getPriority(),
+                    event.getData().asReadOnlyBuffer()) == false) {
+            event.release();
+            return;
+        }
+
+        enqueue(event);
+    }
+
+    private void enqueue(ChannelEvent event) {
+        KeyExtractor conflation = m_conflation;
+        ChannelEvent replaced;
+        Object key;
+        int priority;
+
+        if (conflation != null &&
+            event instanceof ChannelData &&
+            (key = conflation.extractKey((ChannelData)event)) != null) {
+
+            // A message with this key is already waiting in the queue.
+            if ((replaced = m_conflated.put(key, event)) != null) {
+                replaced.release();
+                return;
+            }
+
+            event = new ConflatedSlot(key, ((ChannelData)event).getPriority());
+        }
+
+        if (m_priorityDelivery &&
+            (priority = priorityOf(event)) >= 0) {
+            event.m_queuedAt = System.nanoTime();
+            m_priorityQueues[priority].add(event);
+        } else {
+            m_eventQueue.add(event);
+        }
+
+        m_queueDepth.incrementAndGet();
+        m_eventLock.release();
+        notifyListener();
+    }
+
+    private static ByteBuffer readOnlyCopy(ByteBuffer data) {
+        ByteBuffer copy;
+
+        if (data == null) {
+            return null;
+        }
+
+        copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+
+        return copy.asReadOnlyBuffer();
+    }
+
+    private static int priorityOf(ChannelEvent event) {
+        if (event instanceof ConflatedSlot) {
+            return ((ConflatedSlot)event).priority;
+        }
+
+        if (event instanceof ChannelData) {
+            return ((ChannelData)event).getPriority();
+        }
+
+        return -1;
+    }
+
+    boolean hasFilters() {
+        return m_filters.length > 0;
+    }
+
+    /**
+     *  Run the filters over a received data message. Each filter sees
+     *  the payload from its start.
+     *
+     *  @param ctype The ContentType of the payload.
+     *  @param priority The priority of the message.
+     *  @param payload A read-only view of the payload.
+     *  @return True if every filter accepts the message.
+     */
+    boolean accepts(int ctype, int priority, ByteBuffer payload) {
+        int position = payload.position();
+        int limit = payload.limit();
+
+        for (ChannelFilter filter : m_filters) {
+            payload.limit(limit);
+            payload.position(position);
+
+            if (filter.accept(ctype, priority, payload) == false) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void notifyListener() {
+        ChannelListener listener = m_listener;
+
+        if (listener != null) {
+            listener.eventsAvailable(this);
+        }
+    }
+
+    /**
+     *  Checks if the event queue has reached its limit. A channel that
+     *  is closing never is, as its close must be acknowledged.
+     *
+     *  @return True if the connection may stop reading for this channel.
+     */
+    boolean isSaturated() {
+        int limit = m_queueLimit;
+
+        if (limit == 0 ||
+            m_queueDepth.get() < limit ||
+            m_state.closing) {
+            return false;
+        }
+
+        for (Channel sharer : m_sharers) {
+            if (sharer.isSaturated() == false) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    boolean hasSharers() {
+        return m_sharers.length > 0;
+    }
+
+    /**
+     *  Add a local channel that shares the server channel of this one,
+     *  and hand it a copy of the open response. Called while holding the
+     *  lock of the connection.
+     *
+     *  @param sharer The channel.
+     *  @param mode The mode the channel is opened in, which must be
+     *              allowed by the mode of this channel.
+     */
+    void addSharer(Channel sharer, int mode) throws ChannelError {
+        ChannelState state = m_state;
+        Channel[] sharers = m_sharers;
+        Channel[] updated;
+
+        if (state.closing) {
+            throw new ChannelError("Channel is closing");
+        }
+
+        // Not reached while the open is in flight, see claimOpen().
+        if (state.connected == false) {
+            throw new ChannelError("Channel is not open");
+        }
+
+        if ((state.mode & mode) != mode) {
+            throw new ChannelError("Channel already open in another mode");
         }
+
+        updated = new Channel[sharers.length + 1];
+        System.arraycopy(sharers, 0, updated, 0, sharers.length);
+        updated[sharers.length] = sharer;
+
+        // The sharer is being opened by the calling thread, which holds
+        // its lock.
+        sharer.m_openEvent = new ChannelData(sharer,
+                                             m_openType,
+                                             0,
+                                             m_openData != null
+                                                 ? m_openData.duplicate()
+                                                 : null);
+        sharer.m_openType = m_openType;
+        sharer.m_openData = m_openData;
+
+        m_sharers = updated;
+    }
+
+    /**
+     *  Remove a local channel sharing the server channel. Called while
+     *  holding the lock of the connection.
+     *
+     *  @param sharer The channel.
+     *  @return True if the channel was sharing.
+     */
+    boolean removeSharer(Channel sharer) {
+        Channel[] sharers = m_sharers;
+        Channel[] updated;
+
+        for (int i = 0; i < sharers.length; i++) {
+            if (sharers[i] == sharer) {
+                updated = new Channel[sharers.length - 1];
+                System.arraycopy(sharers, 0, updated, 0, i);
+                System.arraycopy(sharers, i + 1, updated, i,
+                                 sharers.length - i - 1);
+                m_sharers = updated.length > 0 ? updated : NO_SHARERS;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     *  Hand the server channel over to a channel that shares it,
+     *  together with the other sharers. Called while holding the lock of
+     *  the connection.
+     *
+     *  @param successor The channel taking over.
+     */
+    void handOver(Channel successor) {
+        successor.m_sharers = takeSharers();
+        m_successor = successor;
+    }
+
+    /**
+     *  Remove and return all sharing channels. Called while holding the
+     *  lock of the connection.
+     *
+     *  @return The channels.
+     */
+    Channel[] takeSharers() {
+        Channel[] sharers = m_sharers;
+        m_sharers = NO_SHARERS;
+        return sharers;
+    }
+
+    /**
+     *  Returns the number of events waiting in the event queue.
+     *
+     *  @return The queue depth.
+     */
+    int getQueueDepth() {
+        return Math.max(0, m_queueDepth.get());
     }
 
     /**
@@ -450,8 +1394,17 @@ public class Channel {
      *
      *  @return The channel.
      */
-    synchronized int getChannelPtr() {
-        return m_channelPtr;
+    int getChannelPtr() {
+        return m_state.channelPtr;
+    }
+
+    /**
+     *  Returns the current state, for sends that bypass the channel.
+     *
+     *  @return The state.
+     */
+    ChannelState getState() {
+        return m_state;
     }
 
     /**
@@ -481,8 +1434,8 @@ public class Channel {
      *
      *  @return The underlying connection
      */
-    synchronized Connection getUnderlyingConnection() {
-        return m_connection;
+    Connection getUnderlyingConnection() {
+        return m_state.connection;
     }
 
     /**
@@ -496,9 +1449,10 @@ public class Channel {
     synchronized void openSuccess(int channelPtr,
                                   int ctype,
                                   ByteBuffer data) {
-        m_channelPtr = channelPtr;
-        m_connected = true;
+        m_state = m_state.opened(channelPtr);
         m_openEvent = new ChannelData(this, ctype, 0, data);
+        m_openType = ctype;
+        m_openData = readOnlyCopy(data);
         m_waitLock.release();
     }
 
@@ -506,51 +1460,264 @@ public class Channel {
         m_waitLock.release();
     }
 
-    synchronized void destroy(ChannelError error) {
-        destroy(error, null);
+    void destroy(ChannelError error) {
+        destroy(error, null, null);
+    }
+
+    private void expireClose(Connection connection, int channelPtr) {
+        ChannelState state;
+
+        synchronized (this) {
+            state = m_state;
+
+            if (state.closing == false ||
+                state.connection != connection ||
+                state.channelPtr != channelPtr) {
+                return;
+            }
+
+            connection.abandonPointer(channelPtr);
+        }
+
+        destroy(new ChannelError("Timed out while closing the channel",
+                                 ChannelError.CLOSE_TIMEOUT),
+                null,
+                state);
+    }
+
+    /**
+     *  Internal callback for a failed connection. Used by the Connection
+     *  class. A channel opened through an EndpointGroup is marked as
+     *  disconnected, and is re-opened on the next best endpoint once the
+     *  connection has reported the failure, see migrate(). Other channels
+     *  are destroyed.
+     *
+     *  @param error The cause of the failure.
+     *  @return The endpoint the channel was opened on, or null if the
+     *          channel was destroyed.
+     */
+    EndpointGroup.Endpoint connectionLost(ChannelError error) {
+        ChannelState state;
+        Connection connection;
+        EndpointGroup.Endpoint endpoint;
+
+        synchronized (this) {
+            state = m_state;
+            connection = state.connection;
+            endpoint = m_endpoint;
+
+            if (error == null ||
+                m_group == null ||
+                endpoint == null ||
+                state.closing ||
+                state.connected == false ||
+                connection == null) {
+                endpoint = null;
+            } else {
+                m_state = state.disconnected();
+            }
+        }
+
+        if (endpoint == null) {
+            destroy(error);
+            return null;
+        }
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Channel",
+                                   state.channelPtr,
+                                   "Connection lost, migrating from " +
+                                       endpoint);
+        }
+
+        connection.deallocChannel(state.channelPtr);
+
+        // Channels sharing this one do not follow it to another endpoint.
+        for (Channel sharer : connection.takeSharers(this)) {
+            sharer.destroy(error);
+        }
+
+        return endpoint;
+    }
+
+    /**
+     *  Re-open channels lost with a connection, one after the other, on a
+     *  single thread. Used by the Connection class after connectionLost().
+     *
+     *  @param channels The channels to migrate.
+     */
+    static void migrate(final List<Channel> channels) {
+        HydnaThreads.newThread(new Runnable() {
+            public void run() {
+                for (Channel channel : channels) {
+                    channel.migrate();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     *  Re-open the channel on the best remaining endpoint of its group.
+     */
+    private void migrate() {
+        EndpointGroup group;
+        ByteBuffer path;
+        ByteBuffer token;
+        int mode;
+
+        synchronized (this) {
+            group = m_group;
+            path = m_pathBuffer;
+            token = m_token;
+            mode = m_state.mode;
+        }
+
+        try {
+            connectGroup(group, path, token, mode);
+        } catch (ChannelError e) {
+            destroy(e);
+        } catch (InterruptedException e) {
+            destroy(new ChannelError("Interrupted while migrating channel"));
+        }
     }
 
-    synchronized void destroy(ChannelSignal event) {
-        destroy(null, event);
+    void destroy(ChannelSignal event) {
+        destroy(null, event, null);
     }
 
     /**
      *  Internally destroy channel.
      *
      *  @param error The cause of the destroy.
+     *  @param event The end signal, or null.
      */
-    synchronized void destroy(ChannelError error,
-                              ChannelSignal event) {
-        Connection connection = m_connection;
-        boolean connected = m_connected;
-        int channelPtr = m_channelPtr;
-        boolean closing = m_closing;
-        Frame frame;
+    void destroy(ChannelError error, ChannelSignal event) {
+        destroy(error, event, null);
+    }
+
+    /**
+     *  Internally destroy channel. The end signal is acknowledged, and the
+     *  channel released from its connection, outside of the monitor, as
+     *  the write may block. Waiters are woken once that is done.
+     *
+     *  @param error The cause of the destroy.
+     *  @param event The end signal, or null.
+     *  @param expected Only destroy the channel if this still is its
+     *                  state, or null to always destroy it.
+     */
+    private void destroy(ChannelError error,
+                         ChannelSignal event,
+                         ChannelState expected) {
+        ChannelState state;
+        Connection connection;
+        Frame frame = null;
+
+        synchronized (this) {
+            state = m_state;
+
+            if (expected != null && state != expected) {
+                return;
+            }
 
-        m_channelPtr = 0;
-        m_connected = false;
-        m_connection = null;
+            connection = state.connection;
 
-        if (connection != null) {
+            if (connection != null) {
+                m_state = state.disconnected();
 
-            // Tell server that we received the end signal
-            if (event != null && closing == false) {
-                frame = Frame.create(channelPtr,
-                                     ContentType.UTF8,
-                                     Frame.SIGNAL,
-                                     Frame.SIG_END);
+                // Tell server that we received the end signal
+                if (event != null &&
+                    state.closing == false &&
+                    state.attached == false) {
+                    frame = Frame.create(state.channelPtr,
+                                         ContentType.UTF8,
+                                         Frame.SIGNAL,
+                                         Frame.SIG_END);
+                }
+            }
+        }
+
+        if (connection != null) {
+            if (frame != null) {
                 connection.writeBytes(frame);
             }
 
-            connection.deallocChannel(connected ? channelPtr : 0);
+            connection.deallocChannel(state.connected &&
+                                      state.attached == false
+                                          ? state.channelPtr : 0);
+
+            for (Channel sharer : connection.takeSharers(this)) {
+                sharer.destroy(error,
+                               event != null
+                                   ? (ChannelSignal)event.copyFor(sharer)
+                                   : null);
+            }
         }
 
-        m_error = error;
-        m_endEvent = event;
+        synchronized (this) {
+            m_error = error;
+            m_endEvent = event;
 
-        m_eventQueue.clear();
+            // Return recycled events that will never be consumed.
+            discardEvents(m_eventQueue);
 
-        m_waitLock.release();
+            if (m_priorityQueues != null) {
+                for (Queue<ChannelEvent> queue : m_priorityQueues) {
+                    discardEvents(queue);
+                }
+            }
+
+            m_queueDepth.set(0);
+
+            m_waitLock.release();
+            m_eventLock.release();
+        }
+
+        if (error != null || event != null) {
+            notifyListener();
+        }
+    }
+
+    /**
+     *  Close the channel locally, while its server channel stays open for
+     *  other local channels. Ends the channel as if the server had
+     *  acknowledged the close. Called while holding the monitor.
+     */
+    private void detach() {
+        Connection connection = m_state.connection;
+
+        m_state = m_state.disconnected();
+        m_endEvent = new ChannelEndSignal(this,
+                                          ContentType.UTF8,
+                                          ByteBuffer.allocate(0));
+
+        discardEvents(m_eventQueue);
+
+        if (m_priorityQueues != null) {
+            for (Queue<ChannelEvent> queue : m_priorityQueues) {
+                discardEvents(queue);
+            }
+        }
+
+        m_queueDepth.set(0);
+        m_eventLock.release();
+
+        connection.deallocChannel(0);
+
+        notifyListener();
+    }
+
+    private void discardEvents(Queue<ChannelEvent> queue) {
+        ChannelEvent discarded;
+
+        while ((discarded = queue.poll()) != null) {
+            if (discarded instanceof ConflatedSlot) {
+                discarded = m_conflated.remove(((ConflatedSlot)discarded).key);
+            }
+
+            if (discarded != null) {
+                discarded.release();
+            }
+        }
     }
 
     /**
@@ -562,7 +1729,7 @@ public class Channel {
      */
     private boolean send(int ctype, int priority, ByteBuffer data)
         throws ChannelError {
-        Connection connection;
+        ChannelState state = m_state;
         Frame frame;
 
         if (data == null || data.capacity() == 0) {
@@ -573,22 +1740,21 @@ public class Channel {
             throw new ChannelError("Priority must be between 0 - 7");
         }
 
-        if (isConnected() == false ||
-            (connection = getUnderlyingConnection()) == null) {
+        if (state.connected == false || state.connection == null) {
             throw new ChannelError("Not connected");
         }
 
-        if (isWritable() == false) {
+        if (state.isWritable() == false) {
             throw new ChannelError("You do not have permission to send data");
         }
 
-        frame = Frame.create(m_channelPtr,
+        frame = Frame.create(state.channelPtr,
                              ctype,
                              Frame.DATA,
                              priority,
                              data);
 
-        return connection.writeBytes(frame);
+        return state.connection.writeBytes(frame);
     }
 
     /**
@@ -599,29 +1765,28 @@ public class Channel {
      */
     private boolean emit(int ctype, ByteBuffer data)
         throws ChannelError {
-        Connection connection;
+        ChannelState state = m_state;
         Frame frame;
 
         if (data == null || data.capacity() == 0) {
             throw new ChannelError("Payload data cannot be zero-length");
         }
 
-        if (isConnected() == false ||
-            (connection = getUnderlyingConnection()) == null) {
+        if (state.connected == false || state.connection == null) {
             throw new ChannelError("Not connected");
         }
 
-        if (isEmitable() == false) {
+        if (state.isEmitable() == false) {
             throw new ChannelError("You do not have permission to send signals");
         }
 
-        frame = Frame.create(m_channelPtr,
+        frame = Frame.create(state.channelPtr,
                              ctype,
                              Frame.SIGNAL,
                              Frame.SIG_EMIT,
                              data);
 
-        return connection.writeBytes(frame);
+        return state.connection.writeBytes(frame);
     }
 
     /**
@@ -629,35 +1794,98 @@ public class Channel {
      */
     private void close(int ctype, ByteBuffer data)
         throws ChannelError, InterruptedException {
-        Connection connection;
+        final Connection connection;
+        final int channelPtr;
+        HydnaTimer.Timeout timeout = null;
+        ChannelState state;
+        Channel[] sharers;
+        boolean handedOver;
+        long delay;
         Frame frame;
         ChannelError error;
 
-        if (isConnected() == false ||
-            (connection = getUnderlyingConnection()) == null) {
-            throw new ChannelError("The channel is not open");
+        synchronized (this) {
+            state = m_state;
+
+            if (state.connected == false || state.connection == null) {
+                throw new ChannelError("The channel is not open");
+            }
+
+            // Only a local channel is closed, the server channel stays
+            // open for the others.
+            if (state.attached) {
+                state.connection.detachChannel(this);
+                detach();
+                return;
+            }
+        }
+
+        // Hand the server channel over to a channel sharing it, rather
+        // than closing it.
+        while ((sharers = m_sharers).length > 0) {
+            handedOver = false;
+
+            synchronized (sharers[0]) {
+                if (state.connection.handOver(this, sharers[0])) {
+                    sharers[0].m_state = sharers[0].m_state.promoted();
+                    handedOver = true;
+                }
+            }
+
+            if (handedOver) {
+                synchronized (this) {
+                    detach();
+                }
+                return;
+            }
+
+            // Try the next sharer only if this one has left. Otherwise the
+            // server channel is no longer owned by this channel, as the
+            // connection is going away, and it is closed as usual.
+            if (m_sharers == sharers) {
+                break;
+            }
+        }
+
+        synchronized (this) {
+            state = m_state;
+
+            if (state.connected == false || state.connection == null) {
+                throw new ChannelError("The channel is not open");
+            }
+
+            m_state = state.withClosing(true);
         }
 
-        m_closing = true;
+        connection = state.connection;
+        channelPtr = state.channelPtr;
+
+        // The acknowledgement must be read, even if the queue is full.
+        connection.resumeReading();
 
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Channel",
-                                   getChannelPtr(),
+                                   channelPtr,
                                    "Sending close signal");
         }
 
-        frame = Frame.create(getChannelPtr(),
+        // If the server does not acknowledge the close in time, close
+        // the channel locally and ignore what the server sends later.
+        if ((delay = HydnaTimeouts.getCloseTimeout()) > 0) {
+            timeout = HydnaTimer.schedule(new Runnable() {
+                public void run() {
+                    expireClose(connection, channelPtr);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        frame = Frame.create(channelPtr,
                              ctype,
                              Frame.SIGNAL,
                              Frame.SIG_END,
                              data);
 
-        try {
-            connection.writeBytes(frame);
-        } catch (Exception e) {
-            m_connected = false;
-            m_closing = false;
-        }
+        connection.writeBytes(frame);
 
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Channel",
@@ -666,10 +1894,32 @@ public class Channel {
         }
 
         m_waitLock.acquire();
-        m_closing = false;
+
+        synchronized (this) {
+            m_state = m_state.withClosing(false);
+        }
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
 
         if ((error = resetError()) != null) {
             throw error;
         }
     }
+
+    /**
+     *  Holds the place in the event queue of the latest message of a key,
+     *  while conflating.
+     */
+    private static final class ConflatedSlot extends ChannelEvent {
+        final Object key;
+        final int priority;
+
+        ConflatedSlot(Object key, int priority) {
+            super(null, ContentType.UTF8, null);
+            this.key = key;
+            this.priority = priority;
+        }
+    }
 }
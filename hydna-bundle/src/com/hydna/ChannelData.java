@@ -14,6 +14,16 @@ public class ChannelData extends ChannelEvent  {
         m_priority = flag;
     }
 	
+    @Override
+    ChannelEvent copyFor(Channel target) {
+        return new ChannelData(target, getContentType(), m_priority,
+                               sharedData());
+    }
+
+    void setPriority(int priority) {
+        m_priority = priority;
+    }
+
     /**
      *  Returns the priority of the content.
      *
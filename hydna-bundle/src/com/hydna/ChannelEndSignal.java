@@ -12,4 +12,9 @@ public class ChannelEndSignal extends ChannelSignal  {
                             ByteBuffer data) {
         super(target, ctype, data);
     }
+
+    @Override
+    ChannelEvent copyFor(Channel target) {
+        return new ChannelEndSignal(target, getContentType(), sharedData());
+    }
 }
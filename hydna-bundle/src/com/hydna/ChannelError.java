@@ -8,6 +8,15 @@ import java.nio.charset.CharacterCodingException;
 public class ChannelError extends Exception {
 
     private static final long serialVersionUID = -7144874937032709941L;
+
+    // Codes of local errors. Codes from 0 and up are sent by the server.
+    public static final int LOCAL_ERROR = -1;
+    public static final int CONNECT_TIMEOUT = -2;
+    public static final int HANDSHAKE_TIMEOUT = -3;
+    public static final int RESOLVE_TIMEOUT = -4;
+    public static final int OPEN_TIMEOUT = -5;
+    public static final int CLOSE_TIMEOUT = -6;
+
     private int m_code;
 
     public ChannelError(String message, int code) {
@@ -16,13 +25,23 @@ public class ChannelError extends Exception {
     }
 
     public ChannelError(String message) {
-        this(message, -1);
+        this(message, LOCAL_ERROR);
     }
 
     public int getCode() {
         return m_code;
     }
 
+    /**
+     *  Checks if the error was caused by a step that did not finish in
+     *  time, see HydnaTimeouts.
+     *
+     *  @return True for the timeout codes.
+     */
+    public boolean isTimeout() {
+        return m_code <= CONNECT_TIMEOUT && m_code >= CLOSE_TIMEOUT;
+    }
+
     static ChannelError fromOpenError(int flag, int ctype, ByteBuffer data) {
         int code = flag;
         String message = "";
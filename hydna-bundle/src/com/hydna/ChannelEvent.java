@@ -11,12 +11,79 @@ public class ChannelEvent {
 
     private ByteBuffer m_data;
     private int m_ctype;
+
+    // When the event was queued, for aging in priority delivery.
+    long m_queuedAt;
 	
     public ChannelEvent(Channel target, int ctype, ByteBuffer data) {
+        m_target = target;
+        m_data = data;
+        m_ctype = ctype;
+    }
+
+    void reset(Channel target, int ctype, ByteBuffer data) {
+        m_target = target;
         m_data = data;
         m_ctype = ctype;
     }
 
+    /**
+     *  Returns a copy of the event for a local channel sharing the server
+     *  channel. The copy shares the payload bytes through a read-only
+     *  view.
+     *
+     *  @param target The channel to deliver the copy to.
+     *  @return The copy.
+     */
+    ChannelEvent copyFor(Channel target) {
+        return new ChannelEvent(target, m_ctype, sharedData());
+    }
+
+    /**
+     *  Returns a read-only view of the payload, with its own position and
+     *  limit.
+     */
+    ByteBuffer sharedData() {
+        return m_data != null ? m_data.asReadOnlyBuffer() : null;
+    }
+
+    int getContentType() {
+        return m_ctype;
+    }
+
+    /**
+     *  Add a reference to the event. Only meaningful for events delivered
+     *  to a channel with event recycling enabled, other events are
+     *  returned as is.
+     *
+     *  @return This event.
+     */
+    public ChannelEvent retain() {
+        return this;
+    }
+
+    /**
+     *  Drop a reference to the event. When the last reference of a
+     *  recycled event is dropped, the event and its data go back to the
+     *  pool and must not be used any more. For other events this does
+     *  nothing, so it is always safe to call once per received event.
+     *
+     *  @return True if the event was returned to its pool.
+     */
+    public boolean release() {
+        return false;
+    }
+
+    /**
+     *  Returns the number of references to the event.
+     *
+     *  @return The reference count, always 1 for events that are not
+     *          recycled.
+     */
+    public int refCount() {
+        return 1;
+    }
+
 
     /**
      *  Returns the Channel which this event belongs to.
@@ -49,6 +116,10 @@ public class ChannelEvent {
     /**
      *  Returns the data associated with this ChannelData instance.
      *
+     *  On a channel that shares its server channel with other local
+     *  channels, the data is a read-only view of a payload shared by all
+     *  of them, so array() is not available.
+     *
      *  @return The content.
      */
     public ByteBuffer getData() {
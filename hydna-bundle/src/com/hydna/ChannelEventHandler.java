@@ -0,0 +1,40 @@
+package com.hydna;
+
+/**
+ *  Handles the events of a channel consumed by a PartitionedDispatcher.
+ */
+public interface ChannelEventHandler {
+
+    /**
+     *  Called for each data message and signal, and last for the end
+     *  signal once all earlier events have been handled. Events of the
+     *  same key are handled in order on one thread, while events of
+     *  different keys may be handled concurrently.
+     *
+     *  The dispatcher releases the event when this method returns. A
+     *  handler that keeps the event longer must call retain() on it, and
+     *  release() once done.
+     *
+     *  @param event The event.
+     */
+    void handleEvent(ChannelEvent event);
+
+    /**
+     *  Called on the thread of the lane when handleEvent throws, or on
+     *  the dispatching thread when the KeyExtractor throws. The event is
+     *  released after this method returns, and the dispatcher goes on
+     *  with the next event.
+     *
+     *  @param event The event that failed.
+     *  @param error The exception or error that was thrown.
+     */
+    void handleFailure(ChannelEvent event, Throwable error);
+
+    /**
+     *  Called when the channel fails, once all earlier events have been
+     *  handled. No events follow.
+     *
+     *  @param error The cause of the failure.
+     */
+    void handleError(ChannelError error);
+}
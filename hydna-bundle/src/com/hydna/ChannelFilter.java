@@ -0,0 +1,23 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  Decides whether a received data message is delivered to a channel,
+ *  see Channel.addFilter(). Filters run on the receiving thread of the
+ *  connection, over the frame as it sits in the read buffer, before any
+ *  event is created.
+ */
+public interface ChannelFilter {
+
+    /**
+     *  Checks a data message.
+     *
+     *  @param ctype The ContentType of the payload.
+     *  @param priority The priority of the message.
+     *  @param payload A read-only view of the payload, between position
+     *                 and limit. Only valid during the call.
+     *  @return True to deliver the message, false to drop it.
+     */
+    boolean accept(int ctype, int priority, ByteBuffer payload);
+}
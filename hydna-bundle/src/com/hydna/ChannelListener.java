@@ -0,0 +1,23 @@
+package com.hydna;
+
+/**
+ *  Notified when a Channel has something for Channel.pollEvent() to
+ *  return, so that events can be consumed without a thread blocked in
+ *  Channel.nextEvent(). A listener is installed with
+ *  Channel.setListener().
+ *
+ *  The listener is called on the receiving thread of the connection, or
+ *  the thread that failed the channel, sometimes while the channel is
+ *  locked. It must return quickly, typically by handing the work to an
+ *  executor that then polls the channel.
+ */
+public interface ChannelListener {
+
+    /**
+     *  Called after an event, the end signal or an error has been added
+     *  to the channel.
+     *
+     *  @param channel The channel.
+     */
+    void eventsAvailable(Channel channel);
+}
@@ -0,0 +1,214 @@
+package com.hydna;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  Waits for events on many channels from one thread, much like a
+ *  java.nio.channels.Selector.
+ *
+ *  Channels are registered with register(), and select() returns the
+ *  channels that have events, an error or an end signal waiting, which
+ *  are then consumed with Channel.pollEvent(). A channel that is not
+ *  fully drained is selected again by the next select().
+ *
+ *  Registering a channel installs the selector as its ChannelListener,
+ *  so a channel can not be registered with a selector and have another
+ *  listener at the same time. Only one thread should select at a time.
+ */
+public final class ChannelSelector {
+
+    // Locks rather than monitors, so that a virtual thread that waits in
+    // select does not pin its carrier.
+    private final Lock m_selectLock = new ReentrantLock();
+    private final Lock m_lock = new ReentrantLock();
+    private final Condition m_readyCondition = m_lock.newCondition();
+
+    private final Set<Channel> m_channels =
+        Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+
+    // Guarded by m_lock.
+    private Set<Channel> m_ready = new LinkedHashSet<Channel>();
+    private boolean m_wakeup = false;
+
+    // The channels returned by the last select.
+    private Set<Channel> m_selected = Collections.emptySet();
+
+    private final ChannelListener m_listener = new ChannelListener() {
+        public void eventsAvailable(Channel channel) {
+            ready(channel);
+        }
+    };
+
+    /**
+     *  Register a channel. A channel that already has events is ready
+     *  right away.
+     *
+     *  @param channel The channel.
+     */
+    public void register(Channel channel) {
+        m_channels.add(channel);
+        channel.setListener(m_listener);
+    }
+
+    /**
+     *  Unregister a channel.
+     *
+     *  @param channel The channel.
+     *  @return True if the channel was registered.
+     */
+    public boolean unregister(Channel channel) {
+        if (m_channels.remove(channel) == false) {
+            return false;
+        }
+
+        if (channel.getListener() == m_listener) {
+            channel.setListener(null);
+        }
+
+        m_lock.lock();
+        try {
+            m_ready.remove(channel);
+        } finally {
+            m_lock.unlock();
+        }
+
+        return true;
+    }
+
+    /**
+     *  Returns the registered channels.
+     *
+     *  @return An unmodifiable view of the channels.
+     */
+    public Set<Channel> getChannels() {
+        return Collections.unmodifiableSet(m_channels);
+    }
+
+    /**
+     *  Wait until at least one registered channel is ready, the timeout
+     *  expires or wakeup() is called.
+     *
+     *  @param timeout The timeout in milliseconds, or 0 to wait without
+     *                 a timeout.
+     *  @return The ready channels, possibly none.
+     */
+    public Set<Channel> select(long timeout) throws InterruptedException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+
+        return select(true, TimeUnit.MILLISECONDS.toNanos(timeout));
+    }
+
+    /**
+     *  Wait until at least one registered channel is ready, or wakeup()
+     *  is called.
+     *
+     *  @return The ready channels, possibly none.
+     */
+    public Set<Channel> select() throws InterruptedException {
+        return select(true, 0);
+    }
+
+    /**
+     *  Returns the channels that are ready, without waiting.
+     *
+     *  @return The ready channels, possibly none.
+     */
+    public Set<Channel> selectNow() {
+        try {
+            return select(false, 0);
+        } catch (InterruptedException e) {
+            // Not reached, as select does not wait.
+            Thread.currentThread().interrupt();
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     *  Make a select that is waiting, or the next one if none is, return
+     *  right away.
+     */
+    public void wakeup() {
+        m_lock.lock();
+        try {
+            m_wakeup = true;
+            m_readyCondition.signalAll();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    private Set<Channel> select(boolean block, long timeout)
+        throws InterruptedException {
+        m_selectLock.lockInterruptibly();
+        try {
+            return selectLocked(block, timeout);
+        } finally {
+            m_selectLock.unlock();
+        }
+    }
+
+    private Set<Channel> selectLocked(boolean block, long timeout)
+        throws InterruptedException {
+        Set<Channel> selected;
+        long deadline = System.nanoTime() + timeout;
+        long remaining;
+
+        // Channels are only signalled when an event is added, so check
+        // the ones that may have been left with events last time. This
+        // is done without m_lock, as the listener is called while the
+        // channel is locked.
+        for (Channel channel : m_selected) {
+            if (m_channels.contains(channel) && channel.hasEvents()) {
+                ready(channel);
+            }
+        }
+
+        m_lock.lock();
+        try {
+            while (block && m_ready.isEmpty() && m_wakeup == false) {
+                if (timeout == 0) {
+                    m_readyCondition.await();
+                } else if ((remaining = deadline - System.nanoTime()) > 0) {
+                    m_readyCondition.awaitNanos(remaining);
+                } else {
+                    break;
+                }
+            }
+
+            m_wakeup = false;
+
+            if (m_ready.isEmpty()) {
+                selected = Collections.emptySet();
+            } else {
+                selected = m_ready;
+                m_ready = new LinkedHashSet<Channel>();
+            }
+        } finally {
+            m_lock.unlock();
+        }
+
+        m_selected = selected;
+
+        return Collections.unmodifiableSet(selected);
+    }
+
+    private void ready(Channel channel) {
+        m_lock.lock();
+        try {
+            if (m_channels.contains(channel) && m_ready.add(channel)) {
+                m_readyCondition.signalAll();
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+}
@@ -9,4 +9,9 @@ public class ChannelSignal extends ChannelEvent  {
                          ByteBuffer data) {
         super(target, ctype, data);
     }
+
+    @Override
+    ChannelEvent copyFor(Channel target) {
+        return new ChannelSignal(target, getContentType(), sharedData());
+    }
 }
@@ -0,0 +1,109 @@
+package com.hydna;
+
+/**
+ *  An immutable snapshot of the connection state of a Channel.
+ *
+ *  The channel replaces its snapshot as a whole, while holding its
+ *  monitor, and publishes it through a volatile field. Readers such as
+ *  send() and emit() get a consistent view of the pointer, mode and
+ *  connection with a single volatile read, without taking the monitor.
+ */
+final class ChannelState {
+
+    static final ChannelState INITIAL =
+        new ChannelState(null, 0, 0, false, false, false);
+
+    final Connection connection;
+    final int channelPtr;
+    final int mode;
+    final boolean connected;
+    final boolean closing;
+
+    // Set while sharing the server channel of another local channel.
+    final boolean attached;
+
+    private ChannelState(Connection connection,
+                         int channelPtr,
+                         int mode,
+                         boolean connected,
+                         boolean closing,
+                         boolean attached) {
+        this.connection = connection;
+        this.channelPtr = channelPtr;
+        this.mode = mode;
+        this.connected = connected;
+        this.closing = closing;
+        this.attached = attached;
+    }
+
+    /**
+     *  Returns a new, not yet connected, state with a mode.
+     */
+    ChannelState withMode(int mode) {
+        return new ChannelState(null, 0, mode, false, false, false);
+    }
+
+    /**
+     *  Returns the state while opening on a connection.
+     */
+    ChannelState withConnection(Connection connection) {
+        return new ChannelState(connection, 0, mode, false, false, false);
+    }
+
+    /**
+     *  Returns the state once the server has opened the channel.
+     */
+    ChannelState opened(int channelPtr) {
+        return new ChannelState(connection, channelPtr, mode, true, false,
+                                false);
+    }
+
+    /**
+     *  Returns the state once attached to the server channel that another
+     *  local channel has open.
+     */
+    ChannelState attached(int channelPtr) {
+        return new ChannelState(connection, channelPtr, mode, true, false,
+                                true);
+    }
+
+    /**
+     *  Returns the state once the server channel has been handed over
+     *  from the local channel that opened it.
+     */
+    ChannelState promoted() {
+        return new ChannelState(connection, channelPtr, mode, connected,
+                                closing, false);
+    }
+
+    ChannelState withClosing(boolean closing) {
+        return new ChannelState(connection, channelPtr, mode, connected,
+                                closing, attached);
+    }
+
+    /**
+     *  Returns the state after the channel has been closed or lost,
+     *  keeping the mode so that it can be opened again.
+     */
+    ChannelState disconnected() {
+        return new ChannelState(null, 0, mode, false, closing, false);
+    }
+
+    boolean isReadable() {
+        return connected &&
+               closing == false &&
+               ((mode & ChannelMode.READ) == ChannelMode.READ);
+    }
+
+    boolean isWritable() {
+        return connected &&
+               closing == false &&
+               ((mode & ChannelMode.WRITE) == ChannelMode.WRITE);
+    }
+
+    boolean isEmitable() {
+        return connected &&
+               closing == false &&
+               ((mode & ChannelMode.EMIT) == ChannelMode.EMIT);
+    }
+}
@@ -0,0 +1,284 @@
+package com.hydna;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *  This class is used internally by the Connection class.
+ *
+ *  An open addressing map from channel pointer to Channel. Lookups are
+ *  done on the receive thread for every inbound frame and does neither
+ *  box the pointer nor take a lock. Mutations (open and close) are done
+ *  in place under the table lock, and are amortised O(1). Removed
+ *  entries leave a tombstone, so that probe sequences stay intact, and
+ *  the table is only rebuilt, and published through a volatile field,
+ *  when it has to grow or is mostly tombstones.
+ */
+class ChannelTable {
+
+    private static final Channel[] EMPTY = new Channel[0];
+
+    private static final int MIN_CAPACITY = 8;
+
+    private static final class Entry {
+        final int ptr;
+        final Channel channel;
+
+        // Position in m_channels. Guarded by the table lock.
+        int index;
+
+        Entry(int ptr, Channel channel) {
+            this.ptr = ptr;
+            this.channel = channel;
+        }
+    }
+
+    private static final Entry TOMBSTONE = new Entry(0, null);
+
+    private static final class Table {
+        final AtomicReferenceArray<Entry> entries;
+        final int mask;
+
+        Table(int capacity) {
+            this.entries = new AtomicReferenceArray<Entry>(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private volatile Table m_table;
+    private volatile int m_size;
+
+    // The live entries, densely packed. Guarded by the table lock.
+    private Entry[] m_channels;
+
+    // Live entries plus tombstones. Guarded by the table lock.
+    private int m_used;
+
+    // Snapshot returned by values(), built on demand after a mutation.
+    private volatile Channel[] m_values;
+
+    ChannelTable() {
+        clear();
+    }
+
+    /**
+     *  Returns the channel associated with the pointer.
+     *
+     *  @param channelPtr The channel pointer.
+     *  @return The channel, or null if not open.
+     */
+    Channel get(int channelPtr) {
+        Table table = m_table;
+        AtomicReferenceArray<Entry> entries = table.entries;
+        int i = hash(channelPtr) & table.mask;
+        Entry entry;
+
+        while ((entry = entries.get(i)) != null) {
+            if (entry.ptr == channelPtr && entry != TOMBSTONE) {
+                return entry.channel;
+            }
+            i = (i + 1) & table.mask;
+        }
+
+        return null;
+    }
+
+    /**
+     *  Returns the number of open channels.
+     *
+     *  @return The number of channels.
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     *  Returns a snapshot of all open channels. The returned array is
+     *  shared and must not be modified.
+     *
+     *  @return The channels.
+     */
+    Channel[] values() {
+        Channel[] values = m_values;
+
+        if (values != null) {
+            return values;
+        }
+
+        synchronized (this) {
+            if ((values = m_values) == null) {
+                values = m_size == 0 ? EMPTY : new Channel[m_size];
+
+                for (int n = 0; n < values.length; n++) {
+                    values[n] = m_channels[n].channel;
+                }
+
+                m_values = values;
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     *  Associate a channel with the pointer, replacing any previous
+     *  channel with the same pointer.
+     *
+     *  @param channelPtr The channel pointer.
+     *  @param channel The channel.
+     */
+    synchronized void put(int channelPtr, Channel channel) {
+        Table table = m_table;
+        AtomicReferenceArray<Entry> entries = table.entries;
+        Entry entry = new Entry(channelPtr, channel);
+        int i = hash(channelPtr) & table.mask;
+        int free = -1;
+        Entry current;
+
+        while ((current = entries.get(i)) != null) {
+            if (current == TOMBSTONE) {
+                if (free == -1) {
+                    free = i;
+                }
+            } else if (current.ptr == channelPtr) {
+                entry.index = current.index;
+                m_channels[entry.index] = entry;
+                entries.set(i, entry);
+                m_values = null;
+                return;
+            }
+            i = (i + 1) & table.mask;
+        }
+
+        if (free == -1) {
+            // Keep at least half of the slots empty, counting tombstones.
+            if ((m_used + 1) * 2 > entries.length()) {
+                rehash(m_size + 1);
+                put(channelPtr, channel);
+                return;
+            }
+
+            free = i;
+            m_used++;
+        }
+
+        if (m_size == m_channels.length) {
+            Entry[] channels = new Entry[m_channels.length * 2];
+            System.arraycopy(m_channels, 0, channels, 0, m_size);
+            m_channels = channels;
+        }
+
+        entry.index = m_size;
+        m_channels[m_size] = entry;
+        entries.set(free, entry);
+        m_size = m_size + 1;
+        m_values = null;
+    }
+
+    /**
+     *  Remove the channel associated with the pointer.
+     *
+     *  @param channelPtr The channel pointer.
+     *  @return The channel that was removed, or null if none.
+     */
+    synchronized Channel remove(int channelPtr) {
+        Table table = m_table;
+        AtomicReferenceArray<Entry> entries = table.entries;
+        int i = hash(channelPtr) & table.mask;
+        Entry entry;
+
+        while ((entry = entries.get(i)) != null) {
+            if (entry.ptr == channelPtr && entry != TOMBSTONE) {
+                entries.set(i, TOMBSTONE);
+                unlink(entry);
+                return entry.channel;
+            }
+            i = (i + 1) & table.mask;
+        }
+
+        return null;
+    }
+
+    /**
+     *  Remove a channel, regardless of which pointer it is stored under.
+     *
+     *  @param channel The channel to remove.
+     *  @return True if the channel was removed.
+     */
+    synchronized boolean remove(Channel channel) {
+        for (int n = 0; n < m_size; n++) {
+            if (m_channels[n].channel == channel) {
+                remove(m_channels[n].ptr);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Remove all channels.
+     */
+    synchronized void clear() {
+        m_channels = new Entry[MIN_CAPACITY];
+        m_used = 0;
+        m_size = 0;
+        m_values = EMPTY;
+        m_table = new Table(MIN_CAPACITY);
+    }
+
+    /**
+     *  Remove an entry from m_channels, moving the last entry into its
+     *  place. Shrinks the table once it is mostly tombstones.
+     */
+    private void unlink(Entry entry) {
+        int last = m_size - 1;
+
+        if (entry.index != last) {
+            m_channels[entry.index] = m_channels[last];
+            m_channels[entry.index].index = entry.index;
+        }
+
+        m_channels[last] = null;
+        m_size = last;
+        m_values = null;
+
+        if (m_table.mask + 1 > MIN_CAPACITY && m_size * 8 < m_used) {
+            rehash(m_size);
+        }
+    }
+
+    /**
+     *  Build a table for the live entries, with room for at least the
+     *  given number of entries, and publish it.
+     */
+    private void rehash(int size) {
+        int capacity = MIN_CAPACITY;
+        Table table;
+        Entry entry;
+        int mask;
+        int i;
+
+        while (capacity < size * 4) {
+            capacity <<= 1;
+        }
+
+        table = new Table(capacity);
+        mask = table.mask;
+
+        for (int n = 0; n < m_size; n++) {
+            entry = m_channels[n];
+            i = hash(entry.ptr) & mask;
+            while (table.entries.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            table.entries.set(i, entry);
+        }
+
+        m_used = m_size;
+        m_table = table;
+    }
+
+    private static int hash(int channelPtr) {
+        int h = channelPtr * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,27 +1,33 @@
 package com.hydna;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -30,10 +36,33 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Connection implements Runnable {
 
+    // Room for two frames of maximum size.
+    private static final int READ_BUFFER_SIZE = (0xFFFF + 2) * 2;
+
+    // Frames per gathering write, two buffers each, within IOV_MAX.
+    private static final int WRITE_BATCH_FRAMES = 512;
+
+    private static final long READ_PAUSE_RECHECK =
+        TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Maximum number of paths in the resolve cache of a connection. The
+    // least recently used path is evicted once it is full.
+    static final int RESOLVE_CACHE_SIZE = 1024;
+
+    static final String LINGER_PROPERTY = "com.hydna.connectionLinger";
+
+    // Time an idle connection is kept open for reuse, in milliseconds.
+    private static volatile long m_linger =
+        Long.getLong(LINGER_PROPERTY, 0);
+
     private static Map<String, Connection> m_availableConnections;
 
+    // Guarded by the monitor. The latch is counted down once the
+    // connecting thread has set m_handshaked or m_connectError.
     private boolean m_connecting = false;
-    private boolean m_connected = false;
+    private CountDownLatch m_connectLatch;
+    private ChannelError m_connectError;
+    private volatile boolean m_connected = false;
     private boolean m_handshaked = false;
     private boolean m_destroying = false;
     private boolean m_listening = false;
@@ -43,18 +72,82 @@ public class Connection implements Runnable {
     private short m_port;
 
     private SocketChannel m_socketChannel;
-    private Socket m_socket;
-    private DataOutputStream m_outStream;
-    private BufferedReader m_inStreamReader;
+    private ByteBuffer m_readBuffer;
+
+    private CountDownLatch m_handshakeLatch;
+    private volatile ChannelError m_handshakeError;
+    private long m_handshakeDeadline;
+    private boolean m_hasDeadline;
 
-    private Map<Integer, Channel> m_openChannels;
+    private ChannelTable m_openChannels;
+    private ConcurrentMap<String, Channel> m_openChannelsByPath;
+
+    // Paths a local channel is opening, counted down once the open has
+    // succeeded or failed. Guarded by the monitor.
+    private Map<String, CountDownLatch> m_openingPaths;
+    private Map<String, Integer> m_resolveCache;
+
+    // Pointers of channels that were given up on locally, while the
+    // server may still send frames for them.
+    private Set<Integer> m_abandonedPointers;
 
     private OpenRequest m_pendingOpenRequest;
 
     private int m_channelRefCount = 0;
+    private HydnaTimer.Timeout m_lingerTask;
 
     private Thread m_listeningThread;
+    private volatile boolean m_readPaused = false;
+
+    private final ConnectionMetrics m_metrics;
+
+    // Only used by the listening thread.
+    private final EventPool m_eventPool = new EventPool();
+
+
+    /**
+     *  Set the time an idle connection is kept open for reuse, once its
+     *  last channel has closed. Defaults to the system property
+     *  com.hydna.connectionLinger, or 0 to close right away.
+     *
+     *  @param linger The time in milliseconds. Negative values are
+     *                treated as 0.
+     */
+    static void setLinger(long linger) {
+        m_linger = Math.max(0, linger);
+    }
+
+    /**
+     *  Returns the time an idle connection is kept open for reuse.
+     *
+     *  @return The time in milliseconds.
+     */
+    static long getLinger() {
+        return m_linger;
+    }
+
+    /**
+     *  Return an available connection, or create a new one, and add a
+     *  channel reference to it. Done under the registry lock, so that a
+     *  lingering connection can not be evicted in between.
+     *
+     *  @param host The host associated with the connection.
+     *  @param port The port associated with the connection.
+     *  @return The connection.
+     */
+    synchronized static Connection acquireConnection(String host, short port)
+        throws ChannelError {
+        Connection connection = getConnection(host, port);
 
+        // Being destroyed, but not yet removed from the registry.
+        if (connection.isDestroying()) {
+            disposeConnection(connection);
+            connection = getConnection(host, port);
+        }
+
+        connection.allocChannel();
+        return connection;
+    }
 
     /**
      *  Return an available connection or create a new one.
@@ -108,7 +201,50 @@ public class Connection implements Runnable {
         m_host = host;
         m_port = port;
 
-        m_openChannels = new ConcurrentHashMap<Integer, Channel>();
+        m_openChannels = new ChannelTable();
+        m_readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        m_readBuffer.order(ByteOrder.BIG_ENDIAN);
+        m_openChannelsByPath = new ConcurrentHashMap<String, Channel>();
+        m_openingPaths = new HashMap<String, CountDownLatch>();
+        m_resolveCache = newResolveCache();
+        m_abandonedPointers = Collections.newSetFromMap(
+            new ConcurrentHashMap<Integer, Boolean>());
+
+        m_metrics = ConnectionMetrics.forEndpoint(host, port);
+    }
+
+    /**
+     *  Create a resolve cache that evicts the least recently used path
+     *  once it holds RESOLVE_CACHE_SIZE paths. Access must be synchronized
+     *  on the map, as lookups reorder it.
+     */
+    private static Map<String, Integer> newResolveCache() {
+        return new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Integer> eldest) {
+                return size() > RESOLVE_CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     *  Returns the number of open channels on this connection.
+     *
+     *  @return The number of open channels.
+     */
+    int getOpenChannelCount() {
+        return m_openChannels.size();
+    }
+
+    /**
+     *  Returns a snapshot of the open channels on this connection.
+     *
+     *  @return The open channels.
+     */
+    Channel[] getOpenChannels() {
+        return m_openChannels.values();
     }
 
     synchronized boolean isDestroying() {
@@ -127,6 +263,11 @@ public class Connection implements Runnable {
 
         synchronized (this) {
             m_channelRefCount++;
+
+            if (m_lingerTask != null) {
+                m_lingerTask.cancel();
+                m_lingerTask = null;
+            }
         }
 
         if (HydnaDebug.HYDNADEBUG) {
@@ -154,7 +295,13 @@ public class Connection implements Runnable {
             return;
         }
 
-        m_openChannels.remove(channelPtr);
+        if (unregisterChannel(channelPtr) != null) {
+            m_metrics.channelClosed();
+
+            if (HydnaTrace.isEnabled()) {
+                HydnaTrace.record(HydnaTrace.CHANNEL_CLOSE, channelPtr, 0, 0);
+            }
+        }
 
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection",
@@ -163,7 +310,9 @@ public class Connection implements Runnable {
                                          + m_openChannels.size());
         }
 
-        --m_channelRefCount;
+        synchronized (this) {
+            --m_channelRefCount;
+        }
 
         checkRefCount();
     }
@@ -183,7 +332,30 @@ public class Connection implements Runnable {
 
             if (m_channelRefCount != 0) {
                 return;
-            }            
+            }
+
+            // Keep a working connection around for a while, so that
+            // a new channel does not have to connect again.
+            if (m_linger > 0 && m_handshaked && m_destroying == false) {
+                if (HydnaDebug.HYDNADEBUG) {
+                    DebugHelper.debugPrint("Connection",
+                                           0,
+                                           "No more refs, linger for "
+                                               + m_linger + " ms");
+                }
+
+                if (m_lingerTask != null) {
+                    m_lingerTask.cancel();
+                }
+
+                m_lingerTask = HydnaTimer.schedule(new Runnable() {
+                    public void run() {
+                        evictIdle();
+                    }
+                }, m_linger, TimeUnit.MILLISECONDS);
+
+                return;
+            }
         }
 
         if (HydnaDebug.HYDNADEBUG) {
@@ -197,6 +369,33 @@ public class Connection implements Runnable {
         }
     }
 
+    /**
+     *  Destroy the connection if it is still idle when the linger period
+     *  ends. The connection is removed from the registry first, under the
+     *  registry lock, so that no new channel can be added to it.
+     */
+    private void evictIdle() {
+        synchronized (Connection.class) {
+            synchronized (this) {
+                m_lingerTask = null;
+
+                if (m_channelRefCount != 0 || m_destroying) {
+                    return;
+                }
+            }
+
+            disposeConnection(this);
+        }
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection",
+                                   0,
+                                   "Linger expired, destroy connection");
+        }
+
+        destroy(null);
+    }
+
     /**
      *  Request to open a channel.
      *
@@ -217,312 +416,961 @@ public class Connection implements Runnable {
             throw new ChannelError("Channel already open");
         }
 
-        try {
-            synchronized (this) {
-                if (!m_handshaked) {
-                    connectConnection(m_host, m_port);
-                }
-            }
-        } catch (ChannelError e) {
-            throw e;
-        }
+        ensureConnected();
 
         synchronized (this) {
             m_pendingOpenRequest = request;
         }
+
+        // The response must be read, even if all queues are full.
+        resumeReading();
     }
 
-    private Channel getChannelByPath(String path) {
-        Iterator<Channel> it;
-        Channel channel;
+    /**
+     *  Wait, before reading from the socket, while the event queue of
+     *  every open channel is at its limit, see Channel.setQueueLimit().
+     *  Checked again every READ_PAUSE_RECHECK in case a wake-up was
+     *  missed, for instance when a channel is removed.
+     */
+    private void awaitDemand() {
+        while (isSaturated()) {
+            m_readPaused = true;
+
+            if (isSaturated() == false) {
+                break;
+            }
+
+            LockSupport.parkNanos(this, READ_PAUSE_RECHECK);
+        }
+
+        m_readPaused = false;
+    }
+
+    private boolean isSaturated() {
+        Channel[] channels = m_openChannels.values();
 
-        it = m_openChannels.values().iterator();
-        while (it.hasNext()) {
-            channel = it.next();
-            if (channel.getPath() == path) {
-                return channel;
+        if (channels.length == 0) {
+            return false;
+        }
+
+        for (Channel channel : channels) {
+            if (channel.isSaturated() == false) {
+                return false;
             }
         }
+
+        synchronized (this) {
+            return m_pendingOpenRequest == null && m_destroying == false;
+        }
+    }
+
+    /**
+     *  Wake the receiving thread, if it is waiting for a queue to drain.
+     */
+    void resumeReading() {
+        Thread thread = m_listeningThread;
+
+        if (m_readPaused && thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     *  Look up the channel pointer a path resolved to earlier on this
+     *  connection. Pointers are only valid for the lifetime of the
+     *  connection, so the cache dies with it.
+     *
+     *  @param path The path.
+     *  @return The channel pointer, or null if not cached.
+     */
+    Integer getResolvedPointer(String path) {
+        Integer channelPtr;
+
+        if (path == null) {
+            return null;
+        }
+
+        synchronized (m_resolveCache) {
+            channelPtr = m_resolveCache.get(path);
+        }
+
+        if (channelPtr != null) {
+            m_metrics.resolveCacheHit();
+        }
+
+        return channelPtr;
+    }
+
+    /**
+     *  Attach a channel to the server channel that another local channel
+     *  has open on the same path, if any.
+     *
+     *  @param channel The channel.
+     *  @param mode The mode the channel is opened in.
+     *  @return The shared channel pointer, or 0 if the path is not open
+     *          or is still being opened.
+     */
+    synchronized int attachChannel(Channel channel, int mode)
+        throws ChannelError {
+        Channel primary = getChannelByPath(channel.getPath());
+
+        if (primary == null || m_openingPaths.containsKey(channel.getPath())) {
+            return 0;
+        }
+
+        primary.addSharer(channel, mode);
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection",
+                                   primary.getChannelPtr(),
+                                   "Channel attached to open channel");
+        }
+
+        return primary.getChannelPtr();
+    }
+
+    /**
+     *  Claim the open of a path that attachChannel() found not open, so
+     *  that channels opening the same path meanwhile wait for the outcome
+     *  instead of opening it twice. The claim must be ended with
+     *  openFinished().
+     *
+     *  @param path The path.
+     *  @return Null if the caller now opens the path, or a latch to wait
+     *          on before trying to attach again.
+     */
+    synchronized CountDownLatch claimOpen(String path) {
+        CountDownLatch opening;
+
+        if (path == null) {
+            return null;
+        }
+
+        if ((opening = m_openingPaths.get(path)) != null) {
+            return opening;
+        }
+
+        // Opened since attachChannel() looked, try again right away.
+        if (getChannelByPath(path) != null) {
+            return new CountDownLatch(0);
+        }
+
+        m_openingPaths.put(path, new CountDownLatch(1));
+
         return null;
     }
+
+    /**
+     *  End the claim on a path, once its open has succeeded or failed,
+     *  and wake the channels waiting for it.
+     *
+     *  @param path The path.
+     */
+    synchronized void openFinished(String path) {
+        CountDownLatch opening;
+
+        if (path != null && (opening = m_openingPaths.remove(path)) != null) {
+            opening.countDown();
+        }
+    }
+
+    /**
+     *  Detach a channel from the server channel it shares.
+     *
+     *  @param channel The channel.
+     *  @return True if the channel was attached.
+     */
+    synchronized boolean detachChannel(Channel channel) {
+        Channel primary = getChannelByPath(channel.getPath());
+
+        return primary != null && primary.removeSharer(channel);
+    }
+
+    /**
+     *  Make a channel sharing the server channel of another the one that
+     *  owns it, so that the other can be closed locally.
+     *
+     *  @param primary The channel that owns the server channel.
+     *  @param successor A channel sharing it.
+     *  @return False if the primary no longer owns the server channel or
+     *          the successor no longer shares it.
+     */
+    synchronized boolean handOver(Channel primary, Channel successor) {
+        int channelPtr = primary.getChannelPtr();
+
+        if (m_openChannels.get(channelPtr) != primary ||
+            primary.removeSharer(successor) == false) {
+            return false;
+        }
+
+        primary.handOver(successor);
+        registerChannel(channelPtr, successor);
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection",
+                                   channelPtr,
+                                   "Channel handed over to a sharer");
+        }
+
+        return true;
+    }
+
+    /**
+     *  Remove and return the channels sharing the server channel of a
+     *  channel that is going away.
+     *
+     *  @param primary The channel.
+     *  @return The sharing channels.
+     */
+    synchronized Channel[] takeSharers(Channel primary) {
+        return primary.takeSharers();
+    }
+
+    private Channel getChannelByPath(String path) {
+        if (path == null) {
+            return null;
+        }
+        return m_openChannelsByPath.get(path);
+    }
+
+    /**
+     *  Add an open channel to the pointer and the path index.
+     *
+     *  @param channelPtr The channel pointer.
+     *  @param channel The channel.
+     */
+    void registerChannel(int channelPtr, Channel channel) {
+        String path = channel.getPath();
+
+        m_openChannels.put(channelPtr, channel);
+
+        if (path != null) {
+            m_openChannelsByPath.put(path, channel);
+        }
+    }
+
+    /**
+     *  Remove an open channel from the pointer and the path index.
+     *
+     *  @param channelPtr The channel pointer.
+     *  @return The channel that was removed, or null if none.
+     */
+    private Channel unregisterChannel(int channelPtr) {
+        Channel channel = m_openChannels.remove(channelPtr);
+
+        if (channel != null && channel.getPath() != null) {
+            m_openChannelsByPath.remove(channel.getPath(), channel);
+        }
+
+        return channel;
+    }
 	
     /**
-     *  Connect the connection.
+     *  Connect the connection, unless it is connected already. The first
+     *  caller connects, and callers that arrive meanwhile wait for its
+     *  outcome. No monitor is held while connecting, so a slow host does
+     *  not hold up anything else that needs the connection or the
+     *  registry.
+     */
+    private void ensureConnected() throws ChannelError {
+        CountDownLatch latch;
+        ChannelError error = null;
+        boolean connect = false;
+
+        synchronized (this) {
+            if (m_handshaked) {
+                return;
+            }
+
+            if (m_connecting == false) {
+                m_connecting = true;
+                m_connectError = null;
+                m_connectLatch = new CountDownLatch(1);
+                connect = true;
+            }
+
+            latch = m_connectLatch;
+        }
+
+        if (connect) {
+            try {
+                connectConnection(m_host, m_port);
+            } catch (ChannelError e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                m_connecting = false;
+
+                if (error == null && m_destroying) {
+                    error = new ChannelError("Connection closed while connecting");
+                }
+
+                if (error == null) {
+                    m_handshaked = true;
+                } else {
+                    m_connectError = error;
+                }
+            }
+
+            latch.countDown();
+
+            if (error != null) {
+                throw error;
+            }
+
+            return;
+        }
+
+        // The connecting thread is bound by the connect and handshake
+        // timeouts, and so is this wait.
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChannelError("Interrupted while connecting to the host \"" + m_host + "\" on the port " + m_port);
+        }
+
+        synchronized (this) {
+            if (m_handshaked) {
+                return;
+            }
+
+            error = m_connectError;
+        }
+
+        if (error == null) {
+            throw new ChannelError("Could not connect to the host \"" + m_host + "\" on the port " + m_port);
+        }
+
+        throw new ChannelError(error.getMessage(), error.getCode());
+    }
+
+    /**
+     *  Connect the connection, reporting the outcome to the probe.
      *
      *  @param host The host to connect to.
      *  @param port The port to connect to.
      */
     private void connectConnection(String host, int port)
         throws ChannelError {
-		
+        HydnaProbe probe = HydnaProbes.getProbe();
+        long start = probe != null ? System.nanoTime() : 0;
+
+        try {
+            openConnection(host, port);
+        } catch (ChannelError e) {
+            if (probe != null) {
+                probe.connected(host, port, System.nanoTime() - start,
+                                e.getMessage());
+            }
+            throw e;
+        }
+
+        if (probe != null) {
+            probe.connected(host, port, System.nanoTime() - start, null);
+        }
+    }
+
+    /**
+     *  Open the connection. The TCP connect and the HTTP upgrade are
+     *  done as one step by the listening thread, which enforces the
+     *  connect and handshake timeouts. This method only waits for it to
+     *  finish.
+     *
+     *  @param host The host to connect to.
+     *  @param port The port to connect to.
+     */
+    private void openConnection(String host, int port)
+        throws ChannelError {
+        SocketChannel socketChannel;
+        long connectTimeout = HydnaTimeouts.getConnectTimeout();
+        long handshakeTimeout = HydnaTimeouts.getHandshakeTimeout();
+        boolean done;
+
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection", 0, "Connecting, attempt ");
         }
-        
+
+        m_handshakeError = null;
+        m_handshakeLatch = new CountDownLatch(1);
+        setDeadline(connectTimeout);
+
         try {
-            SocketAddress address = new InetSocketAddress(host, port);
-            m_socketChannel = SocketChannel.open(address);
-            m_socket = m_socketChannel.socket();
-            
-            try {
-                m_socket.setTcpNoDelay(true);
-            } catch (SocketException e) {
-                System.err.println("WARNING: Could not set TCP_NODELAY");
-            }
-        	
-            m_outStream = new DataOutputStream(m_socket.getOutputStream());
-            m_inStreamReader = new BufferedReader(new InputStreamReader(m_socket.getInputStream()));
-        	
-            if (HydnaDebug.HYDNADEBUG) {
-                DebugHelper.debugPrint("Connection", 0, "Connected, sending HTTP upgrade request");
-            }
-        	
-            m_connecting = false;
-            m_connected = true;
-        	
-            connectHandler();
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            m_socketChannel = socketChannel;
+            socketChannel.connect(new InetSocketAddress(host, port));
         } catch (UnresolvedAddressException e) {
-            m_connecting = false;
+            closeSocket();
             throw new ChannelError("The host \"" + host + "\" could not be resolved");
         } catch (IOException e) {
-            m_connecting = false;
+            closeSocket();
             throw new ChannelError("Could not connect to the host \"" + host + "\" on the port " + port);
         }
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection", 0, "Creating a new thread for frame listening");
+        }
+
+        try {
+            m_listeningThread = HydnaThreads.newThread(this);
+            m_listeningThread.start();
+        } catch (IllegalThreadStateException e) {
+            closeSocket();
+            throw new ChannelError("Could not create listening thread");
+        }
+
+        try {
+            if (connectTimeout == 0 || handshakeTimeout == 0) {
+                m_handshakeLatch.await();
+                done = true;
+            } else {
+                // Leave the listening thread time to report the step
+                // that timed out.
+                done = m_handshakeLatch.await(connectTimeout +
+                                              handshakeTimeout + 1000,
+                                              TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            done = false;
+            Thread.currentThread().interrupt();
+        }
+
+        if (done == false) {
+            closeSocket();
+            throw new ChannelError("Timed out while connecting to the host \"" + host + "\" on the port " + port,
+                                   ChannelError.CONNECT_TIMEOUT);
+        }
+
+        if (m_handshakeError != null) {
+            throw m_handshakeError;
+        }
+
+        if (m_socketChannel == null || m_socketChannel.isOpen() == false) {
+            throw new ChannelError("Could not read from the connection");
+        }
+
+        m_metrics.connected(this);
+
+        if (HydnaTrace.isEnabled()) {
+            HydnaTrace.record(HydnaTrace.CONNECT, 0, 0, 0);
+        }
     }
-	
+
     /**
-     *  Send HTTP upgrade request.
+     *  Close the socket without destroying the connection. Used when
+     *  connect or handshake fails.
      */
-    private void connectHandler() throws ChannelError {
+    private void closeSocket() {
+        SocketChannel socketChannel = m_socketChannel;
+
+        m_connected = false;
+
+        if (socketChannel != null) {
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     *  Finish the TCP connect, send the HTTP upgrade request and parse
+     *  the response, all without blocking past the handshake deadline.
+     *  The response is read into m_readBuffer. Bytes following the
+     *  response are left in the buffer, to be decoded as frames.
+     */
+    private void handshakeHandler() throws ChannelError {
+        SocketChannel socketChannel = m_socketChannel;
+        ByteBuffer request;
+        Selector selector = null;
+        SelectionKey key;
+        int headerEnd;
+
         try {
-            m_outStream.writeBytes("GET / HTTP/1.1\r\n" +
-                                   "Connection: upgrade\r\n" +
-                                   "Upgrade: winksock/1\r\n" +
-                                   "Host: " + m_host);
+            selector = Selector.open();
+            key = socketChannel.register(selector, SelectionKey.OP_CONNECT);
 
-            m_outStream.writeBytes("\r\n\r\n");
-            handshakeHandler();
-        } catch (IOException e) {
-            m_connected = false;
-            throw new ChannelError("Could not send upgrade request");
+            while (socketChannel.finishConnect() == false) {
+                awaitReady(selector);
+            }
+
+            m_connected = true;
+            setDeadline(HydnaTimeouts.getHandshakeTimeout());
+
+            try {
+                socketChannel.socket().setTcpNoDelay(true);
+            } catch (SocketException e) {
+                System.err.println("WARNING: Could not set TCP_NODELAY");
+            }
+
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Connection", 0, "Connected, sending HTTP upgrade request");
+            }
+
+            request = ByteBuffer.wrap(("GET / HTTP/1.1\r\n" +
+                                       "Connection: upgrade\r\n" +
+                                       "Upgrade: winksock/1\r\n" +
+                                       "Host: " + m_host +
+                                       "\r\n\r\n").getBytes("US-ASCII"));
+
+            key.interestOps(SelectionKey.OP_WRITE);
+
+            while (request.hasRemaining()) {
+                if (socketChannel.write(request) == 0) {
+                    awaitReady(selector);
+                }
+            }
+
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Connection", 0, "Incoming upgrade response");
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            m_readBuffer.clear();
+
+            while ((headerEnd = findHeaderEnd(m_readBuffer)) == -1) {
+                int n;
+
+                if (m_readBuffer.hasRemaining() == false) {
+                    throw new ChannelError("Server responded with bad handshake");
+                }
+
+                n = socketChannel.read(m_readBuffer);
+
+                if (n == -1) {
+                    throw new ChannelError("Server responded with bad handshake");
+                }
+
+                if (n == 0) {
+                    awaitReady(selector);
+                }
+            }
         } catch (ChannelError e) {
-            m_connected = false;
             throw e;
+        } catch (IOException e) {
+            if (m_connected) {
+                throw new ChannelError("Could not send upgrade request");
+            }
+            throw new ChannelError("Could not connect to the host \"" + m_host + "\" on the port " + m_port);
+        } finally {
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        parseHandshakeResponse(m_readBuffer, headerEnd);
+
+        // Keep any bytes after the response, they are the first frames.
+        m_readBuffer.flip();
+        m_readBuffer.position(headerEnd);
+        m_readBuffer.compact();
+
+        try {
+            socketChannel.configureBlocking(true);
+        } catch (IOException e) {
+            throw new ChannelError("Could not read from the connection");
+        }
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection", 0, "Handshake done on connection");
         }
     }
-	
+
     /**
-     *  Handle the Handshake response frame.
+     *  Set the deadline of the current step of the handshake.
+     *
+     *  @param timeout The timeout in milliseconds, 0 for none.
      */
-    private void handshakeHandler() throws ChannelError {
-        ChannelError error;
-        boolean fieldsLeft = true;
-        boolean gotResponse = false;
-        
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Connection", 0, "Incoming upgrade response");
+    private void setDeadline(long timeout) {
+        m_hasDeadline = timeout > 0;
+        m_handshakeDeadline = System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     *  Wait for the single key of a selector to become ready, or fail if
+     *  the deadline of the current step has passed.
+     */
+    private void awaitReady(Selector selector)
+        throws IOException, ChannelError {
+        long remaining = 0;
+
+        if (m_hasDeadline) {
+            remaining = TimeUnit.NANOSECONDS.toMillis(
+                m_handshakeDeadline - System.nanoTime());
+
+            if (remaining <= 0 && m_connected) {
+                throw new ChannelError("Timed out while waiting for the handshake from the host \"" + m_host + "\" on the port " + m_port,
+                                       ChannelError.HANDSHAKE_TIMEOUT);
+            }
+
+            if (remaining <= 0) {
+                throw new ChannelError("Timed out while connecting to the host \"" + m_host + "\" on the port " + m_port,
+                                       ChannelError.CONNECT_TIMEOUT);
+            }
         }
-                
-        while (fieldsLeft) {
-            String line;
-        	
-            try {
-                line = m_inStreamReader.readLine();
-                if (line.length() == 0) {
-                    fieldsLeft = false;
-                }
-            } catch (IOException e) {
-                error = new ChannelError("Server responded with bad handshake");
-                throw error;
+
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     *  Returns the offset just after the empty line ending the HTTP
+     *  response in a buffer in write mode, or -1 if not yet received.
+     */
+    private static int findHeaderEnd(ByteBuffer buffer) {
+        int end = buffer.position();
+
+        for (int i = 3; i < end; i++) {
+            if (buffer.get(i) == '\n' &&
+                buffer.get(i - 1) == '\r' &&
+                buffer.get(i - 2) == '\n' &&
+                buffer.get(i - 3) == '\r') {
+                return i + 1;
             }
-        	
-            if (fieldsLeft) {
-                // First line i a response, all others are fields
-                if (!gotResponse) {
-                    int code = 0;
-                    int pos1, pos2;
-        			
-                    // Take the response code from "HTTP/1.1 101
-                    // Switching Protocols"
-                    pos1 = line.indexOf(" ");
-                    if (pos1 != -1) {
-                        pos2 = line.indexOf(" ", pos1 + 1);
-        				
-                        if (pos2 != -1) {
-                            try {
-                                code = Integer.parseInt(line.substring(pos1 + 1, pos2));
-                            } catch (NumberFormatException e) {
-                                error = new ChannelError("Could not read " +
-                                                         "the status from " +
-                                                         "the response \"" +
-                                                         line + "\"");
-                                throw error;
-                            }
-                        }
-                    }
+        }
+
+        return -1;
+    }
 
-                    if (code != 101) {
-                        error = new ChannelError("Unexpected response " + 
-                                                 "code, " + code);
-                        throw error;
-                    }
+    /**
+     *  Parse and validate the HTTP upgrade response.
+     *
+     *  @param buffer The buffer holding the response, from offset 0.
+     *  @param headerEnd The offset just after the response.
+     */
+    private static void parseHandshakeResponse(ByteBuffer buffer,
+                                               int headerEnd)
+        throws ChannelError {
+        byte[] bytes = new byte[headerEnd];
+        String[] lines;
+        String line;
+        int code = 0;
+        int pos1, pos2;
+
+        for (int i = 0; i < headerEnd; i++) {
+            bytes[i] = buffer.get(i);
+        }
 
-                    gotResponse = true;
-                } else {
-                    line = line.toLowerCase();
-                    int pos;
-
-                    pos = line.indexOf("upgrade: ");
-                    if (pos != -1) {
-                        String header = line.substring(9);
-                        if (!header.equals("winksock/1")) {
-                            error = new ChannelError("Bad protocol version: " +
-                                                     header);
-                            throw error;
-                        }
-                    }
+        lines = new String(bytes, Charset.forName("US-ASCII")).split("\r\n");
+        line = lines[0];
+
+        // Take the response code from "HTTP/1.1 101
+        // Switching Protocols"
+        pos1 = line.indexOf(" ");
+        if (pos1 != -1) {
+            pos2 = line.indexOf(" ", pos1 + 1);
+
+            if (pos2 != -1) {
+                try {
+                    code = Integer.parseInt(line.substring(pos1 + 1, pos2));
+                } catch (NumberFormatException e) {
+                    throw new ChannelError("Could not read " +
+                                           "the status from " +
+                                           "the response \"" +
+                                           line + "\"");
                 }
             }
         }
 
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Connection", 0, "Handshake done on connection");
+        if (code != 101) {
+            throw new ChannelError("Unexpected response " +
+                                   "code, " + code);
         }
 
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Connection", 0, "Creating a new thread for frame listening");
-        }
+        for (int i = 1; i < lines.length; i++) {
+            line = lines[i].toLowerCase();
 
-        try {
-            m_listeningThread = new Thread(this);
-            m_listeningThread.start();
-        } catch (IllegalThreadStateException e) {
-            error = new ChannelError("Could not create listening thread");
-            throw error;
+            if (line.startsWith("upgrade: ")) {
+                String header = line.substring(9).trim();
+                if (!header.equals("winksock/1")) {
+                    throw new ChannelError("Bad protocol version: " +
+                                           header);
+                }
+            }
         }
-
-        m_handshaked = true;
     }
 	
     /**
      * The method that is called in the new thread.
-     * Listens for incoming frames.
+     * Does the handshake, then listens for incoming frames.
      */
     public void run() {
+        try {
+            handshakeHandler();
+        } catch (ChannelError e) {
+            m_handshakeError = e;
+            closeSocket();
+            m_handshakeLatch.countDown();
+            return;
+        }
+
+        m_handshakeLatch.countDown();
+
         receiveHandler();
     }
 	
     /**
-     *  Handles all incoming data.
+     *  Handles all incoming data. Frames are decoded from m_readBuffer,
+     *  which may already hold bytes received together with the handshake
+     *  response.
      */
     public void receiveHandler() {
-        int size;
-        int channelPtr;
-        int flag;
-        int ctype;
-        int op;
-
-        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE + 2);
-        header.order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer buffer = m_readBuffer;
         ByteBuffer data;
-
-        int offset = 0;
-        int n = 1;
+        HydnaProbe probe;
+        Channel recycler;
+        Channel target;
+        RecycledChannelData event;
+        ByteBuffer filterView = buffer.asReadOnlyBuffer();
+        int frames;
+        int start;
+        int size;
+        int limit;
+        int n;
 
         m_listening = true;
 
         for (;;) {
-            try {
-                while(offset < Frame.HEADER_SIZE + 2 && n >= 0) {
-                    n = m_socketChannel.read(header);
-                    offset += n;
+            buffer.flip();
+            start = buffer.position();
+            frames = 0;
+
+            while (buffer.remaining() >= 2) {
+                size = (int)buffer.getShort(buffer.position()) & 0xFFFF;
+
+                if (size < Frame.HEADER_SIZE) {
+                    destroy(new ChannelError("Server sent a bad frame"));
+                    return;
                 }
-            } catch (Exception e) {
-                n = -1;
+
+                if (buffer.remaining() < size + 2) {
+                    break;
+                }
+
+                buffer.getShort();
+                int channelPtr = buffer.getInt();
+                byte of = buffer.get();
+
+                // A read holds many small frames, so the queue limit is
+                // checked per frame, for the channel it is sent to.
+                if ((target = m_openChannels.get(channelPtr)) != null &&
+                    target.isSaturated()) {
+                    awaitDemand();
+                }
+
+                size -= Frame.HEADER_SIZE;
+
+                if (target != null &&
+                    target.hasFilters() &&
+                    target.hasSharers() == false &&
+                    isFiltered(target, of, filterView,
+                               buffer.position(), size)) {
+                    buffer.position(buffer.position() + size);
+                    frameReceived(channelPtr, Frame.DATA, size);
+                    m_metrics.frameFiltered();
+                    frames++;
+                    continue;
+                }
+                recycler = getRecyclingChannel(channelPtr, of, size);
+
+                if (recycler != null) {
+                    event = m_eventPool.acquire(size, recycler.getPath());
+                    data = event.prepare(size);
+                } else {
+                    event = null;
+                    data = ByteBuffer.allocate(size);
+                    data.order(ByteOrder.BIG_ENDIAN);
+                }
+
+                limit = buffer.limit();
+                buffer.limit(buffer.position() + size);
+                data.put(buffer);
+                buffer.limit(limit);
+
+                if (event != null) {
+                    dispatchRecycled(recycler, channelPtr, of, event);
+                } else {
+                    data.flip();
+                    dispatchFrame(channelPtr, of, data);
+                }
+                frames++;
             }
 
-            if (n <= 0) {
-                destroy(new ChannelError("Could not read from the connection"));
-                break;
+            if (frames > 0 && (probe = HydnaProbes.getProbe()) != null) {
+                probe.framesReceived(m_host, m_port, frames,
+                                     buffer.position() - start);
             }
 
-            header.flip();
+            buffer.compact();
 
-            size = (int)header.getShort() & 0xFFFF;
-            data = ByteBuffer.allocate(size - Frame.HEADER_SIZE);
-            data.order(ByteOrder.BIG_ENDIAN);
+            awaitDemand();
 
             try {
-                while(offset < size + 2 && n >= 0) {
-                    n = m_socketChannel.read(data);
-                    offset += n;
-                }
+                n = m_socketChannel.read(buffer);
             } catch (Exception e) {
                 n = -1;
             }
 
             if (n <= 0) {
-                destroy(new ChannelError("Could not read from the connection"));
+                // A read failing because destroy() closed the socket is
+                // not an error, and must not be traced as one.
+                if (isDestroying() == false) {
+                    destroy(new ChannelError("Could not read from the connection"));
+                }
                 break;
             }
+        }
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection", 0, "Listening thread exited");
+        }
+    }
+	
+    /**
+     *  Checks if the filters of a channel reject a data frame, looking at
+     *  the payload where it is in the read buffer.
+     *
+     *  @param channel The channel the frame is sent to.
+     *  @param of The opcode, content type and flag byte of the frame.
+     *  @param view A read-only view of the read buffer.
+     *  @param position The position of the payload in the read buffer.
+     *  @param size The size of the payload.
+     *  @return True if the frame should be dropped.
+     */
+    private static boolean isFiltered(Channel channel,
+                                      byte of,
+                                      ByteBuffer view,
+                                      int position,
+                                      int size) {
+        if (size == 0 ||
+            ((of & Frame.OP_BITMASK) >> Frame.OP_BITPOS) != Frame.DATA) {
+            return false;
+        }
 
-            data.flip();
-            
-            channelPtr = header.getInt();
-            byte of = header.get();
+        view.clear();
+        view.position(position);
+        view.limit(position + size);
 
-            ctype = (of & Frame.CTYPE_BITMASK) >> Frame.CTYPE_BITPOS;
-            op = (of & Frame.OP_BITMASK) >> Frame.OP_BITPOS;
-            flag = (of & Frame.FLAG_BITMASK);
+        return channel.accepts((of & Frame.CTYPE_BITMASK) >> Frame.CTYPE_BITPOS,
+                               of & Frame.FLAG_BITMASK,
+                               view) == false;
+    }
 
-            switch (op) {
+    /**
+     *  Returns the target channel of a frame, if it is a non-empty data
+     *  frame for a single channel that recycles its events.
+     */
+    private Channel getRecyclingChannel(int channelPtr, byte of, int size) {
+        Channel channel;
 
-                case Frame.KEEPALIVE:
-                break;
+        if (channelPtr == 0 ||
+            size == 0 ||
+            ((of & Frame.OP_BITMASK) >> Frame.OP_BITPOS) != Frame.DATA) {
+            return null;
+        }
 
-                case Frame.OPEN:
-                if (HydnaDebug.HYDNADEBUG) {
-                    DebugHelper.debugPrint("Connection",
-                                            channelPtr,
-                                            "Received open response");
-                }
-                processOpenFrame(channelPtr, ctype, flag, data);
-                break;
+        channel = m_openChannels.get(channelPtr);
 
-                case Frame.DATA:
-                if (HydnaDebug.HYDNADEBUG) {
-                    DebugHelper.debugPrint("Connection",
-                                           channelPtr,
-                                           "Received data");
-                }
-                processDataFrame(channelPtr, ctype, flag, data);
-                break;
+        return channel != null &&
+               channel.isRecycleEvents() &&
+               channel.hasSharers() == false ? channel : null;
+    }
 
-                case Frame.SIGNAL:
-                if (HydnaDebug.HYDNADEBUG) {
-                    DebugHelper.debugPrint("Connection",
-                                           channelPtr,
-                                           "Received signal");
-                }
-                processSignalFrame(channelPtr, ctype, flag, data);
-                break;
+    /**
+     *  Deliver a data frame whose payload was read into a recycled event.
+     *
+     *  @param channel The receiving channel.
+     *  @param channelPtr The channel pointer of the frame.
+     *  @param of The opcode, content type and flag byte of the frame.
+     *  @param event The event holding the payload.
+     */
+    private void dispatchRecycled(Channel channel,
+                                  int channelPtr,
+                                  byte of,
+                                  RecycledChannelData event) {
+        int size = event.prepareLength();
 
-                case Frame.RESOLVE:
-                if (HydnaDebug.HYDNADEBUG) {
-                    DebugHelper.debugPrint("Connection",
-                                           channelPtr,
-                                           "Received Resolve");
-                }
-                processResolveFrame(channelPtr, ctype, flag, data);
-                break;
-            }
+        frameReceived(channelPtr, Frame.DATA, size);
+
+        event.init(channel,
+                   (of & Frame.CTYPE_BITMASK) >> Frame.CTYPE_BITPOS,
+                   of & Frame.FLAG_BITMASK);
 
-            offset = 0;
-            n = 1;
-            header.clear();
+        channel.addEvent(event);
+    }
+
+    private void frameReceived(int channelPtr, int op, int size) {
+        m_metrics.frameIn(op, size + Frame.HEADER_SIZE + 2);
+
+        if (HydnaTrace.isEnabled()) {
+            HydnaTrace.record(HydnaTrace.FRAME_IN, channelPtr, op, size);
         }
-        if (HydnaDebug.HYDNADEBUG) {
-            DebugHelper.debugPrint("Connection", 0, "Listening thread exited");
+    }
+
+    /**
+     *  Decode the opcode byte of a frame and dispatch it to the
+     *  matching frame handler.
+     *
+     *  @param channelPtr The channel pointer of the frame.
+     *  @param of The opcode, content type and flag byte of the frame.
+     *  @param data The payload of the frame.
+     */
+    void dispatchFrame(int channelPtr, byte of, ByteBuffer data) {
+        int ctype;
+        int op;
+        int flag;
+
+        ctype = (of & Frame.CTYPE_BITMASK) >> Frame.CTYPE_BITPOS;
+        op = (of & Frame.OP_BITMASK) >> Frame.OP_BITPOS;
+        flag = (of & Frame.FLAG_BITMASK);
+
+        frameReceived(channelPtr, op, data.capacity());
+
+        switch (op) {
+
+            case Frame.KEEPALIVE:
+            break;
+
+            case Frame.OPEN:
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Connection",
+                                        channelPtr,
+                                        "Received open response");
+            }
+            processOpenFrame(channelPtr, ctype, flag, data);
+            break;
+
+            case Frame.DATA:
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Connection",
+                                       channelPtr,
+                                       "Received data");
+            }
+            processDataFrame(channelPtr, ctype, flag, data);
+            break;
+
+            case Frame.SIGNAL:
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Connection",
+                                       channelPtr,
+                                       "Received signal");
+            }
+            processSignalFrame(channelPtr, ctype, flag, data);
+            break;
+
+            case Frame.RESOLVE:
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Connection",
+                                       channelPtr,
+                                       "Received Resolve");
+            }
+            processResolveFrame(channelPtr, ctype, flag, data);
+            break;
         }
     }
 	
@@ -556,7 +1404,22 @@ public class Connection implements Runnable {
         }
 
         if (flag == Frame.OPEN_ALLOW) {
-            m_openChannels.put(channelPtr, channel);
+            if (request.complete() == false) {
+                // The channel gave up waiting, close it on the server.
+                abandonPointer(channelPtr);
+                writeBytes(Frame.create(channelPtr,
+                                        ContentType.UTF8,
+                                        Frame.SIGNAL,
+                                        Frame.SIG_END));
+                return;
+            }
+
+            registerChannel(channelPtr, channel);
+            m_metrics.channelOpened();
+
+            if (HydnaTrace.isEnabled()) {
+                HydnaTrace.record(HydnaTrace.CHANNEL_OPEN, channelPtr, 0, 0);
+            }
 
             if (HydnaDebug.HYDNADEBUG) {
                 DebugHelper.debugPrint("Connection", channelPtr, "A new channel was added");
@@ -572,8 +1435,68 @@ public class Connection implements Runnable {
             DebugHelper.debugPrint("Connection", channelPtr, "The server rejected the open request, errorcode " + flag);
         }
 
+        if (request.isCached() && request.isCompleted() == false) {
+            retryResolve(request);
+            return;
+        }
+
         ChannelError error = ChannelError.fromOpenError(flag, ctype, data);
-        channel.destroy(error);
+        failRequest(request, error);
+    }
+
+    /**
+     *  Fail an open request, unless it has already timed out.
+     */
+    private void failRequest(OpenRequest request, ChannelError error) {
+        if (request.complete()) {
+            request.getChannel().destroy(error);
+        }
+    }
+
+    /**
+     *  Ignore frames for a channel pointer until the server ends it. Used
+     *  when a channel timed out while the server had, or may have, the
+     *  channel open.
+     *
+     *  @param channelPtr The channel pointer.
+     */
+    void abandonPointer(int channelPtr) {
+        if (channelPtr != 0) {
+            m_abandonedPointers.add(channelPtr);
+        }
+    }
+
+    /**
+     *  The server rejected an open request sent with a cached pointer.
+     *  The pointer may be stale, so drop it and resolve the path again.
+     *  If the fresh pointer is rejected too, the open fails as usual.
+     */
+    private void retryResolve(OpenRequest request) {
+        String path = request.getChannel().getPath();
+
+        if (HydnaDebug.HYDNADEBUG) {
+            DebugHelper.debugPrint("Connection",
+                                   request.getChannelPtr(),
+                                   "Cached pointer rejected, resolving again");
+        }
+
+        synchronized (m_resolveCache) {
+            if (Integer.valueOf(request.getChannelPtr())
+                    .equals(m_resolveCache.get(path))) {
+                m_resolveCache.remove(path);
+            }
+        }
+
+        m_metrics.resolveCacheInvalidated();
+
+        request.setCached(false);
+        request.setRetry(true);
+
+        synchronized (this) {
+            m_pendingOpenRequest = request;
+        }
+
+        writeBytes(request.getResolveFrame());
     }
 	
     /**
@@ -590,7 +1513,6 @@ public class Connection implements Runnable {
                                   ByteBuffer data) {
         Channel channel;
         ByteBuffer datac;
-        Iterator<Channel> it;
         int size;
 
         if (data == null || data.capacity() == 0) {
@@ -601,9 +1523,23 @@ public class Connection implements Runnable {
         size = data.capacity();
 
         if (channelPtr == 0) {
-            it = m_openChannels.values().iterator();
-            while (it.hasNext()) {
-                channel = it.next();
+            Channel[] targets = m_openChannels.values();
+
+            m_metrics.broadcastIn(targets.length);
+
+            for (Channel target : targets) {
+                channel = target;
+
+                // Broadcasts are filtered per channel, before the copy.
+                if (channel.hasFilters() &&
+                    channel.hasSharers() == false &&
+                    channel.accepts(ctype,
+                                    flag,
+                                    data.asReadOnlyBuffer()) == false) {
+                    m_metrics.frameFiltered();
+                    continue;
+                }
+
                 datac = ByteBuffer.allocate(size);
                 datac.put(data);
                 datac.flip();
@@ -617,7 +1553,9 @@ public class Connection implements Runnable {
         channel = m_openChannels.get(channelPtr);
 
         if (channel == null) {
-            destroy(new ChannelError("Invalid channel"));
+            if (m_abandonedPointers.contains(channelPtr) == false) {
+                destroy(new ChannelError("Invalid channel"));
+            }
             return;
         }
 
@@ -675,16 +1613,17 @@ public class Connection implements Runnable {
             boolean destroying = false;
             int size = data.capacity();
 
-            Iterator<Channel> it = m_openChannels.values().iterator();
-            while (it.hasNext()) {
-                Channel channel = it.next();
+            for (Channel channel : m_openChannels.values()) {
                 ByteBuffer datac = ByteBuffer.allocate(size);
                 datac.put(data);
                 datac.flip();
                 datac.rewind();
 
                 if (processSignalFrame(channel, ctype, flag, datac) == false) {
-                    it.remove();
+                    m_openChannels.remove(channel);
+                    if (channel.getPath() != null) {
+                        m_openChannelsByPath.remove(channel.getPath(), channel);
+                    }
                 }
             }
 
@@ -695,7 +1634,11 @@ public class Connection implements Runnable {
             channel = m_openChannels.get(channelPtr);
 
             if (channel == null) {
-                destroy(new ChannelError("Received unknown channel"));
+                if (m_abandonedPointers.contains(channelPtr) == false) {
+                    destroy(new ChannelError("Received unknown channel"));
+                } else if (flag == Frame.SIG_END) {
+                    m_abandonedPointers.remove(channelPtr);
+                }
                 return;
             }
 
@@ -723,9 +1666,19 @@ public class Connection implements Runnable {
 
          channel = request.getChannel();
 
+         // The channel gave up waiting, forget the request.
+         if (request.isCompleted()) {
+             synchronized (this) {
+                 if (m_pendingOpenRequest == request) {
+                     m_pendingOpenRequest = null;
+                 }
+             }
+             return;
+         }
+
          if (flag != Frame.OPEN_ALLOW) {
              error = new ChannelError("Unable to resolve path");
-             channel.destroy(error);
+             failRequest(request, error);
              return;
          }
 
@@ -757,12 +1710,25 @@ public class Connection implements Runnable {
 
          if (data.equals(path) == false) {
              error = new ChannelError("Bad path sent by server");
-             channel.destroy(error);
+             failRequest(request, error);
              return;
          }
 
          request.setChannelPtr(channelPtr);
-         channel.resolveSuccess();
+
+         synchronized (m_resolveCache) {
+             m_resolveCache.put(channel.getPath(), channelPtr);
+         }
+
+         // The channel is already waiting for the open response.
+         if (request.isRetry()) {
+             writeBytes(request.getFrame());
+             return;
+         }
+
+         if (request.complete()) {
+             channel.resolveSuccess();
+         }
     }
 
     /**
@@ -771,6 +1737,27 @@ public class Connection implements Runnable {
      *  @error The cause of the destroy.
      */
     private void destroy(ChannelError error) {
+        Set<EndpointGroup.Endpoint> failedEndpoints;
+        List<Channel> migrating;
+        EndpointGroup.Endpoint endpoint;
+
+        // Destroyed once. Closing the socket makes the read of the
+        // listening thread fail, which must not be reported as a second
+        // destroy with an error. The flag is never reset, a destroyed
+        // connection is not reused.
+        synchronized (this) {
+            if (m_destroying) {
+                return;
+            }
+
+            m_destroying = true;
+            m_handshaked = false;
+
+            if (m_lingerTask != null) {
+                m_lingerTask.cancel();
+                m_lingerTask = null;
+            }
+        }
 
         if (HydnaDebug.HYDNADEBUG) {
             String message = "clean shutdown";
@@ -785,15 +1772,25 @@ public class Connection implements Runnable {
                                        + message);
         }
 
-        disposeConnection(this);
+        HydnaProbe probe = HydnaProbes.getProbe();
 
-        synchronized (this) {
-            m_destroying = true;
-            m_handshaked = false;
+        if (probe != null) {
+            probe.connectionDestroyed(m_host, m_port,
+                                      error != null ? error.getMessage() : null);
+        }
+
+        if (HydnaTrace.isEnabled()) {
+            HydnaTrace.record(HydnaTrace.DESTROY, 0, 0, 0);
+
+            if (error != null) {
+                HydnaTrace.error();
+            }
         }
 
+        disposeConnection(this);
+
         if (m_pendingOpenRequest != null) {
-            m_pendingOpenRequest.getChannel().destroy(error);
+            failRequest(m_pendingOpenRequest, error);
             m_pendingOpenRequest = null;
         }
 
@@ -801,6 +1798,9 @@ public class Connection implements Runnable {
         // receiver that access them.
         m_listening = false;
 
+        failedEndpoints = new HashSet<EndpointGroup.Endpoint>();
+        migrating = new ArrayList<Channel>();
+
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection",
                                    0,
@@ -814,10 +1814,31 @@ public class Connection implements Runnable {
                                        channel.getChannelPtr(),
                                        "Destroying channel");
             }
-            channel.destroy(error);
-        }				
+
+            endpoint = channel.connectionLost(error);
+
+            if (endpoint != null) {
+                failedEndpoints.add(endpoint);
+                migrating.add(channel);
+            }
+        }
+
+        // One failed connection is one failure of its endpoint, however
+        // many channels it carried.
+        for (EndpointGroup.Endpoint failed : failedEndpoints) {
+            failed.failure();
+        }
+
+        if (migrating.isEmpty() == false) {
+            Channel.migrate(migrating);
+        }
 
         m_openChannels.clear();
+        m_openChannelsByPath.clear();
+        synchronized (m_resolveCache) {
+            m_resolveCache.clear();
+        }
+        m_abandonedPointers.clear();
 
 
         if (m_connected) {
@@ -835,15 +1856,105 @@ public class Connection implements Runnable {
             m_connected = false;
         }
 
+        m_metrics.disconnected(this);
+
         if (HydnaDebug.HYDNADEBUG) {
             DebugHelper.debugPrint("Connection", 0, "Destroying connection done");
         }
+    }
+
+
+    /**
+     *  Writes data frames that share one payload, to several channels.
+     *  Each header is followed by a view of the payload in a gathering
+     *  write, so the payload is not copied per channel. Frames are
+     *  written in batches of whole frames, so frames written by other
+     *  threads can only come in between frames.
+     *
+     *  @param channelPtrs The channel pointers.
+     *  @param count The number of channel pointers to use.
+     *  @param ctype The ContentType of the payload.
+     *  @param flag The priority of the payload.
+     *  @param payload The payload, which is not modified.
+     *  @return True if every frame was sent.
+     */
+    boolean writeShared(int[] channelPtrs,
+                        int count,
+                        int ctype,
+                        int flag,
+                        ByteBuffer payload) {
 
         synchronized (this) {
-            m_destroying = false;
+            if (m_handshaked == false ||
+                m_destroying == true) {
+                return false;
+            }
+        }
+
+        int headerSize = Frame.HEADER_SIZE + 2;
+        int length = payload.remaining();
+        int frameSize = headerSize + length;
+        int batch = Math.min(count, WRITE_BATCH_FRAMES);
+        ByteBuffer headers = ByteBuffer.allocate(headerSize * batch);
+        ByteBuffer[] buffers = new ByteBuffer[batch * 2];
+        HydnaProbe probe = HydnaProbes.getProbe();
+        long start = probe != null ? System.nanoTime() : 0;
+        boolean success = true;
+        long remaining;
+        int frames;
+
+        for (int offset = 0; offset < count && success; offset += frames) {
+            frames = Math.min(batch, count - offset);
+            headers.clear();
+
+            for (int i = 0; i < frames; i++) {
+                headers.limit(headerSize * (i + 1));
+                headers.position(headerSize * i);
+                Frame.putHeader(headers,
+                                channelPtrs[offset + i],
+                                ctype,
+                                Frame.DATA,
+                                flag,
+                                length);
+                headers.position(headerSize * i);
+                buffers[i * 2] = headers.slice();
+                buffers[i * 2 + 1] = payload.duplicate();
+            }
+
+            remaining = (long)frameSize * frames;
+
+            try {
+                while (remaining > 0) {
+                    remaining -= m_socketChannel.write(buffers, 0, frames * 2);
+                }
+            } catch (Exception e) {
+                success = false;
+            }
+
+            for (int i = 0; i < frames; i++) {
+                if (success) {
+                    m_metrics.frameOut(Frame.DATA, frameSize);
+                } else {
+                    m_metrics.writeFailure();
+                }
+
+                if (HydnaTrace.isEnabled()) {
+                    HydnaTrace.record(success ? HydnaTrace.FRAME_OUT
+                                              : HydnaTrace.WRITE_FAILURE,
+                                      channelPtrs[offset + i],
+                                      Frame.DATA,
+                                      length);
+                }
+            }
+        }
+
+        if (probe != null) {
+            probe.frameWritten(m_host, m_port, Frame.DATA, frameSize * count,
+                               System.nanoTime() - start, success);
         }
-    }
 
+        return success;
+    }
 
     /**
      *  Writes a frame to the connection.
@@ -862,25 +1973,55 @@ public class Connection implements Runnable {
 
         int n = -1;
         ByteBuffer data = frame.getData();
-        int size = data.capacity();
-        int offset = 0;
+        int size = data.remaining();
+        HydnaProbe probe = HydnaProbes.getProbe();
+        long start = probe != null ? System.nanoTime() : 0;
 
         try {
-            while(offset < size) {
+            while (data.hasRemaining()) {
                 n = m_socketChannel.write(data);
-                offset += n;
+
+                // A blocking channel writes something or fails, so a
+                // write without progress is treated as a failure.
+                if (n <= 0) {
+                    n = -1;
+                    break;
+                }
             }
         } catch (Exception e) {
             n = -1;
         }
 
+        if (probe != null) {
+            probe.frameWritten(m_host, m_port, frame.getOpcode(), size,
+                               System.nanoTime() - start, n > 0);
+        }
+
         if (n <= 0) {
             // We do not destroy the connection at this point, even if we
             // we have a write error. The receiveHandler will take care of
             // it.
+            m_metrics.writeFailure();
+
+            if (HydnaTrace.isEnabled()) {
+                HydnaTrace.record(HydnaTrace.WRITE_FAILURE,
+                                  data.getInt(2),
+                                  frame.getOpcode(),
+                                  size - Frame.HEADER_SIZE - 2);
+            }
+
             return false;
         }
 
+        m_metrics.frameOut(frame.getOpcode(), size);
+
+        if (HydnaTrace.isEnabled()) {
+            HydnaTrace.record(HydnaTrace.FRAME_OUT,
+                              data.getInt(2),
+                              frame.getOpcode(),
+                              size - Frame.HEADER_SIZE - 2);
+        }
+
         return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,369 @@
+package com.hydna;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ *  Counters for all connections made to one host and port. An instance
+ *  outlives the Connection instances it measures, so that reconnects
+ *  can be counted.
+ *
+ *  Inbound counters are only written by the receiving thread and are
+ *  updated with lazySet. Outbound counters may be written by any thread,
+ *  and cost two atomic adds per frame, one for the frame and one for
+ *  its bytes.
+ *
+ *  The MBeans are registered with the platform MBean server, which
+ *  outlives the bundle. When the bundle stops, HydnaActivator removes
+ *  the beans of endpoints without a connection. Connections still in
+ *  use by other bundles keep their beans until they are disconnected,
+ *  so that the beans do not keep the classloader of the bundle alive.
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+
+    private static final String[] OPCODE_NAMES = {
+        "keepalive", "open", "data", "signal", "resolve",
+        "reserved5", "reserved6", "reserved7"
+    };
+
+    private static final int OPCODES = OPCODE_NAMES.length;
+
+    private static final ConcurrentMap<String, ConnectionMetrics> m_metrics =
+        new ConcurrentHashMap<String, ConnectionMetrics>();
+
+    // Set while the bundle is stopped. Outside of OSGi never set.
+    private static volatile boolean m_deactivated = false;
+
+    private static final HydnaMetrics m_registry = new HydnaMetrics() {
+        public List<ConnectionMetricsMXBean> getConnectionMetrics() {
+            return new ArrayList<ConnectionMetricsMXBean>(m_metrics.values());
+        }
+
+        public ConnectionMetricsMXBean getConnectionMetrics(String host,
+                                                            int port) {
+            return m_metrics.get(host + ":" + port);
+        }
+    };
+
+    private final String m_host;
+    private final int m_port;
+
+    private final AtomicLongArray m_framesIn = new AtomicLongArray(OPCODES);
+    private final AtomicLongArray m_bytesIn = new AtomicLongArray(OPCODES);
+    private final AtomicLongArray m_framesOut = new AtomicLongArray(OPCODES);
+    private final AtomicLongArray m_bytesOut = new AtomicLongArray(OPCODES);
+
+    private final AtomicLong m_broadcastsIn = new AtomicLong();
+    private final AtomicLong m_broadcastFanOut = new AtomicLong();
+    private final AtomicLong m_opens = new AtomicLong();
+    private final AtomicLong m_closes = new AtomicLong();
+    private final AtomicLong m_resolveCacheHits = new AtomicLong();
+    private final AtomicLong m_resolveCacheInvalidations = new AtomicLong();
+    private final AtomicLong m_framesFiltered = new AtomicLong();
+    private final AtomicLong m_connects = new AtomicLong();
+    private final AtomicLong m_writeFailures = new AtomicLong();
+
+    private volatile Connection m_connection;
+
+    ConnectionMetrics(String host, int port) {
+        m_host = host;
+        m_port = port;
+    }
+
+    /**
+     *  Returns the registry of all connection metrics.
+     *
+     *  @return The registry.
+     */
+    public static HydnaMetrics getRegistry() {
+        return m_registry;
+    }
+
+    /**
+     *  Return the metrics for a host and port, creating and registering
+     *  them with the platform MBean server if needed.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @return The metrics.
+     */
+    static ConnectionMetrics forEndpoint(String host, int port) {
+        String key = host + ":" + port;
+        ConnectionMetrics metrics = m_metrics.get(key);
+        ConnectionMetrics existing;
+
+        if (metrics != null) {
+            return metrics;
+        }
+
+        metrics = new ConnectionMetrics(host, port);
+        existing = m_metrics.putIfAbsent(key, metrics);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        // A stopped bundle does not leave new beans behind.
+        if (m_deactivated) {
+            return metrics;
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(key);
+
+            try {
+                server.registerMBean(metrics, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // Left behind by an earlier instance of the bundle.
+                server.unregisterMBean(name);
+                server.registerMBean(metrics, name);
+            }
+        } catch (Exception e) {
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Metrics", 0,
+                                       "Could not register MBean: " + e);
+            }
+        }
+
+        return metrics;
+    }
+
+    /**
+     *  Called by HydnaActivator when the bundle starts.
+     */
+    static void activate() {
+        m_deactivated = false;
+    }
+
+    /**
+     *  Called by HydnaActivator when the bundle stops. Unregisters the
+     *  MBeans of endpoints without a connection. The others are
+     *  unregistered when their connection is disconnected.
+     */
+    static void deactivate() {
+        m_deactivated = true;
+
+        for (ConnectionMetrics metrics : m_metrics.values()) {
+            if (metrics.isConnected() == false) {
+                metrics.unregister();
+            }
+        }
+    }
+
+    /**
+     *  Unregister the MBean and forget the metrics. Metrics are created
+     *  and registered again by the next connection to the host and port.
+     */
+    private void unregister() {
+        String key = m_host + ":" + m_port;
+
+        if (m_metrics.remove(key, this) == false) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                             .unregisterMBean(objectName(key));
+        } catch (Exception e) {
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("Metrics", 0,
+                                       "Could not unregister MBean: " + e);
+            }
+        }
+    }
+
+    private static ObjectName objectName(String key)
+        throws MalformedObjectNameException {
+        return new ObjectName("com.hydna:type=Connection,name="
+                              + ObjectName.quote(key));
+    }
+
+    void connected(Connection connection) {
+        m_connection = connection;
+        m_connects.incrementAndGet();
+    }
+
+    void disconnected(Connection connection) {
+        if (m_connection == connection) {
+            m_connection = null;
+
+            if (m_deactivated) {
+                unregister();
+            }
+        }
+    }
+
+    void frameIn(int op, int size) {
+        m_framesIn.lazySet(op, m_framesIn.get(op) + 1);
+        m_bytesIn.lazySet(op, m_bytesIn.get(op) + size);
+    }
+
+    void broadcastIn(int fanOut) {
+        m_broadcastsIn.lazySet(m_broadcastsIn.get() + 1);
+        m_broadcastFanOut.lazySet(m_broadcastFanOut.get() + fanOut);
+    }
+
+    void frameOut(int op, int size) {
+        m_framesOut.incrementAndGet(op);
+        m_bytesOut.addAndGet(op, size);
+    }
+
+    void writeFailure() {
+        m_writeFailures.incrementAndGet();
+    }
+
+    void channelOpened() {
+        m_opens.incrementAndGet();
+    }
+
+    void channelClosed() {
+        m_closes.incrementAndGet();
+    }
+
+    void resolveCacheHit() {
+        m_resolveCacheHits.incrementAndGet();
+    }
+
+    void resolveCacheInvalidated() {
+        m_resolveCacheInvalidations.incrementAndGet();
+    }
+
+    void frameFiltered() {
+        m_framesFiltered.incrementAndGet();
+    }
+
+    public String getHost() {
+        return m_host;
+    }
+
+    public int getPort() {
+        return m_port;
+    }
+
+    public boolean isConnected() {
+        return m_connection != null;
+    }
+
+    public String[] getOpcodeNames() {
+        return OPCODE_NAMES.clone();
+    }
+
+    public long[] getFramesInByOpcode() {
+        return toArray(m_framesIn);
+    }
+
+    public long[] getFramesOutByOpcode() {
+        return toArray(m_framesOut);
+    }
+
+    public long[] getBytesInByOpcode() {
+        return toArray(m_bytesIn);
+    }
+
+    public long[] getBytesOutByOpcode() {
+        return toArray(m_bytesOut);
+    }
+
+    public long getFramesIn() {
+        return sum(m_framesIn);
+    }
+
+    public long getFramesOut() {
+        return sum(m_framesOut);
+    }
+
+    public long getBytesIn() {
+        return sum(m_bytesIn);
+    }
+
+    public long getBytesOut() {
+        return sum(m_bytesOut);
+    }
+
+    public long getBroadcastsIn() {
+        return m_broadcastsIn.get();
+    }
+
+    public long getBroadcastFanOut() {
+        return m_broadcastFanOut.get();
+    }
+
+    public long getOpens() {
+        return m_opens.get();
+    }
+
+    public long getCloses() {
+        return m_closes.get();
+    }
+
+    public long getResolveCacheHits() {
+        return m_resolveCacheHits.get();
+    }
+
+    public long getResolveCacheInvalidations() {
+        return m_resolveCacheInvalidations.get();
+    }
+
+    public long getFramesFiltered() {
+        return m_framesFiltered.get();
+    }
+
+    public int getOpenChannels() {
+        Connection connection = m_connection;
+        return connection == null ? 0 : connection.getOpenChannelCount();
+    }
+
+    public long getConnects() {
+        return m_connects.get();
+    }
+
+    public long getReconnects() {
+        return Math.max(0, m_connects.get() - 1);
+    }
+
+    public long getWriteFailures() {
+        return m_writeFailures.get();
+    }
+
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        Connection connection = m_connection;
+
+        if (connection != null) {
+            for (Channel channel : connection.getOpenChannels()) {
+                depths.put(channel.getPath(), channel.getQueueDepth());
+            }
+        }
+
+        return depths;
+    }
+
+    private static long[] toArray(AtomicLongArray counters) {
+        long[] values = new long[counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i);
+        }
+        return values;
+    }
+
+    private static long sum(AtomicLongArray counters) {
+        long total = 0;
+        for (int i = 0; i < counters.length(); i++) {
+            total += counters.get(i);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,59 @@
+package com.hydna;
+
+import java.util.Map;
+
+/**
+ *  Live counters for all connections made to one host and port.
+ *
+ *  Frame counters are indexed by opcode, see getOpcodeNames().
+ */
+public interface ConnectionMetricsMXBean {
+
+    String getHost();
+
+    int getPort();
+
+    boolean isConnected();
+
+    String[] getOpcodeNames();
+
+    long[] getFramesInByOpcode();
+
+    long[] getFramesOutByOpcode();
+
+    long[] getBytesInByOpcode();
+
+    long[] getBytesOutByOpcode();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBroadcastsIn();
+
+    long getBroadcastFanOut();
+
+    long getOpens();
+
+    long getCloses();
+
+    long getResolveCacheHits();
+
+    long getResolveCacheInvalidations();
+
+    long getFramesFiltered();
+
+    int getOpenChannels();
+
+    long getConnects();
+
+    long getReconnects();
+
+    long getWriteFailures();
+
+    Map<String, Integer> getQueueDepths();
+}
@@ -0,0 +1,230 @@
+package com.hydna;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *  An endpoint group that shards channels over a cluster of nodes by
+ *  consistent hashing of the channel path.
+ *
+ *  Each endpoint is placed on a hash ring at a number of virtual nodes,
+ *  and a path is served by the endpoint owning the first virtual node
+ *  at or after the hash of the path. Adding or removing an endpoint only
+ *  moves the paths on the arcs it gains or loses, about 1/n of them,
+ *  while all other paths keep their endpoint.
+ *
+ *  If the owning endpoint is down, the channel is opened on the next
+ *  distinct endpoint along the ring, so the failover target of a path
+ *  is stable as well.
+ */
+public class ConsistentHashGroup extends EndpointGroup {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final class Ring {
+        final long[] hashes;
+        final Endpoint[] owners;
+        final int size;
+
+        Ring(long[] hashes, Endpoint[] owners, int size) {
+            this.hashes = hashes;
+            this.owners = owners;
+            this.size = size;
+        }
+    }
+
+    private final int m_virtualNodes;
+
+    private volatile Ring m_ring;
+
+    /**
+     *  Initializes an empty group with the default number of virtual
+     *  nodes per endpoint.
+     */
+    public ConsistentHashGroup() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     *  Initializes an empty group.
+     *
+     *  @param virtualNodes The number of virtual nodes per endpoint. More
+     *                      nodes give a more even spread of paths.
+     */
+    public ConsistentHashGroup(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+
+        m_virtualNodes = virtualNodes;
+        m_ring = new Ring(new long[0], new Endpoint[0], 0);
+    }
+
+    /**
+     *  Parse a comma separated list of hosts, each with an optional port,
+     *  for example "node1:7010,node2:7010", into a hashed group.
+     *
+     *  @param hosts The list of hosts.
+     *  @return The new group.
+     */
+    public static ConsistentHashGroup parseHashed(String hosts)
+        throws ChannelError {
+        ConsistentHashGroup group = new ConsistentHashGroup();
+
+        for (Endpoint endpoint : parse(hosts).getEndpoints()) {
+            group.add(endpoint.getHost(), endpoint.getPort());
+        }
+
+        return group;
+    }
+
+    @Override
+    public synchronized EndpointGroup add(String host, short port) {
+        super.add(host, port);
+        rebuild();
+        return this;
+    }
+
+    @Override
+    public synchronized boolean remove(String host, short port) {
+        if (super.remove(host, port) == false) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+
+    /**
+     *  Returns the endpoint that owns a path, regardless of its health.
+     *
+     *  @param path The channel path.
+     *  @return The endpoint, or null if the group is empty.
+     */
+    public Endpoint route(String path) {
+        Ring ring = m_ring;
+
+        if (ring.size == 0) {
+            return null;
+        }
+
+        return ring.owners[indexOf(ring, hash(path))];
+    }
+
+    /**
+     *  Returns the distinct endpoints in ring order starting at the owner
+     *  of the path, with endpoints that are down moved to the end.
+     */
+    @Override
+    List<Endpoint> candidates(String path) {
+        Ring ring = m_ring;
+        List<Endpoint> healthy = new ArrayList<Endpoint>();
+        List<Endpoint> down = new ArrayList<Endpoint>();
+        int distinct = getEndpoints().size();
+        int start;
+
+        if (ring.size == 0) {
+            return healthy;
+        }
+
+        start = indexOf(ring, hash(path == null ? "" : path));
+
+        for (int i = 0; i < ring.size; i++) {
+            Endpoint endpoint = ring.owners[(start + i) % ring.size];
+
+            if (healthy.contains(endpoint) || down.contains(endpoint)) {
+                continue;
+            }
+
+            if (endpoint.isHealthy()) {
+                healthy.add(endpoint);
+            } else {
+                down.add(endpoint);
+            }
+
+            if (healthy.size() + down.size() == distinct) {
+                break;
+            }
+        }
+
+        healthy.addAll(down);
+
+        return healthy;
+    }
+
+    private void rebuild() {
+        List<Endpoint> endpoints = getEndpoints();
+        final int size = endpoints.size() * m_virtualNodes;
+        final long[] keys = new long[size];
+        final Endpoint[] nodes = new Endpoint[size];
+        Integer[] order = new Integer[size];
+        long[] hashes = new long[size];
+        Endpoint[] owners = new Endpoint[size];
+        int n = 0;
+
+        for (Endpoint endpoint : endpoints) {
+            for (int i = 0; i < m_virtualNodes; i++) {
+                keys[n] = hash(endpoint.toString() + "#" + i);
+                nodes[n] = endpoint;
+                order[n] = n;
+                n++;
+            }
+        }
+
+        // Ties are broken by name, so that the ring does not depend on
+        // the order the endpoints were added in.
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long ka = keys[a];
+                long kb = keys[b];
+                if (ka != kb) {
+                    return ka < kb ? -1 : 1;
+                }
+                return nodes[a].toString().compareTo(nodes[b].toString());
+            }
+        });
+
+        for (int i = 0; i < size; i++) {
+            hashes[i] = keys[order[i]];
+            owners[i] = nodes[order[i]];
+        }
+
+        m_ring = new Ring(hashes, owners, size);
+    }
+
+    private static int indexOf(Ring ring, long hash) {
+        int pos = Arrays.binarySearch(ring.hashes, hash);
+
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+
+        return pos == ring.size ? 0 : pos;
+    }
+
+    /**
+     *  A 64-bit FNV-1a hash of the UTF-8 bytes, finished with the
+     *  MurmurHash3 mixer so that similar strings spread over the ring.
+     */
+    static long hash(String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        long h = 0xcbf29ce484222325L;
+
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e53fe1a63L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
@@ -0,0 +1,251 @@
+package com.hydna;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  A group of host:port candidates that serve the same channels.
+ *
+ *  New channels are opened on the healthy endpoint with the lowest
+ *  measured round trip time. An endpoint that fails is marked down for
+ *  a backoff period that doubles with every consecutive failure. When
+ *  a connection fails, channels opened through a group are re-opened on
+ *  the next best endpoint instead of failing.
+ *
+ *  A group can also be used from a URL by listing several hosts, for
+ *  example "http://edge1:80,edge2:7010/chat".
+ */
+public class EndpointGroup {
+
+    // Weight of a new round trip sample in the moving average.
+    private static final double RTT_ALPHA = 0.2;
+
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(30);
+
+    private static Map<String, EndpointGroup> m_groups;
+
+    /**
+     *  A single host:port candidate with its health and round trip time.
+     */
+    public static final class Endpoint {
+        private final String m_host;
+        private final short m_port;
+
+        private long m_rtt = 0;
+        private int m_failures = 0;
+        private long m_downUntil = 0;
+
+        Endpoint(String host, short port) {
+            m_host = host;
+            m_port = port;
+        }
+
+        public String getHost() {
+            return m_host;
+        }
+
+        public short getPort() {
+            return m_port;
+        }
+
+        /**
+         *  Returns the moving average of the round trip time.
+         *
+         *  @return The round trip time in nanoseconds, 0 if not measured.
+         */
+        public synchronized long getRoundTripTime() {
+            return m_rtt;
+        }
+
+        /**
+         *  Checks if the endpoint is currently considered healthy.
+         *
+         *  @return True if not marked down.
+         */
+        public synchronized boolean isHealthy() {
+            return System.nanoTime() - m_downUntil >= 0 || m_failures == 0;
+        }
+
+        synchronized void success(long rtt) {
+            m_failures = 0;
+            m_downUntil = 0;
+
+            if (rtt > 0) {
+                m_rtt = m_rtt == 0 ? rtt
+                                   : (long)(m_rtt * (1 - RTT_ALPHA) +
+                                            rtt * RTT_ALPHA);
+            }
+        }
+
+        synchronized void failure() {
+            long backoff = MIN_BACKOFF << Math.min(m_failures, 5);
+
+            m_failures++;
+            m_downUntil = System.nanoTime() + Math.min(backoff, MAX_BACKOFF);
+        }
+
+        synchronized long downUntil() {
+            return m_failures == 0 ? 0 : m_downUntil;
+        }
+
+        public String toString() {
+            return m_host + ":" + m_port;
+        }
+    }
+
+    private final List<Endpoint> m_endpoints;
+
+    /**
+     *  Initializes an empty group.
+     */
+    public EndpointGroup() {
+        m_endpoints = new CopyOnWriteArrayList<Endpoint>();
+    }
+
+    /**
+     *  Parse a comma separated list of hosts, each with an optional port,
+     *  for example "edge1:80,edge2:7010".
+     *
+     *  @param hosts The list of hosts.
+     *  @return The new group.
+     */
+    public static EndpointGroup parse(String hosts) throws ChannelError {
+        EndpointGroup group = new EndpointGroup();
+
+        for (String expr : hosts.split(",")) {
+            String host = expr.trim();
+            short port = 80;
+            int pos = host.lastIndexOf(":");
+
+            if (pos != -1) {
+                try {
+                    port = Short.parseShort(host.substring(pos + 1), 10);
+                } catch (NumberFormatException e) {
+                    throw new ChannelError("Could not read the port \"" + host.substring(pos + 1) + "\"");
+                }
+                host = host.substring(0, pos);
+            }
+
+            if (host.length() != 0) {
+                group.add(host, port);
+            }
+        }
+
+        if (group.m_endpoints.isEmpty()) {
+            throw new ChannelError("No hosts in \"" + hosts + "\"");
+        }
+
+        return group;
+    }
+
+    /**
+     *  Return the shared group for a comma separated list of hosts, so
+     *  that channels using the same list share health information.
+     *
+     *  @param hosts The list of hosts.
+     *  @return The group.
+     */
+    synchronized static EndpointGroup forHosts(String hosts)
+        throws ChannelError {
+        EndpointGroup group;
+
+        if (m_groups == null) {
+            m_groups = new HashMap<String, EndpointGroup>();
+        }
+
+        group = m_groups.get(hosts);
+
+        if (group == null) {
+            group = parse(hosts);
+            m_groups.put(hosts, group);
+        }
+
+        return group;
+    }
+
+    /**
+     *  Add a candidate to the group.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @return This group.
+     */
+    public EndpointGroup add(String host, short port) {
+        m_endpoints.add(new Endpoint(host, port));
+        return this;
+    }
+
+    /**
+     *  Remove a candidate from the group. Channels open on it stay open
+     *  until their connection fails.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @return True if the candidate was in the group.
+     */
+    public boolean remove(String host, short port) {
+        for (Endpoint endpoint : m_endpoints) {
+            if (endpoint.getHost().equals(host) &&
+                endpoint.getPort() == port) {
+                return m_endpoints.remove(endpoint);
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Returns all candidates in the group.
+     *
+     *  @return The endpoints.
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(m_endpoints);
+    }
+
+    /**
+     *  Returns the candidates in the order they should be tried: healthy
+     *  endpoints by round trip time, then endpoints that are down by how
+     *  soon they come back up.
+     *
+     *  @param path The path of the channel to open.
+     *  @return The ordered endpoints.
+     */
+    List<Endpoint> candidates(String path) {
+        List<Endpoint> healthy = new ArrayList<Endpoint>();
+        List<Endpoint> down = new ArrayList<Endpoint>();
+
+        for (Endpoint endpoint : m_endpoints) {
+            if (endpoint.isHealthy()) {
+                healthy.add(endpoint);
+            } else {
+                down.add(endpoint);
+            }
+        }
+
+        Collections.sort(healthy, new Comparator<Endpoint>() {
+            public int compare(Endpoint a, Endpoint b) {
+                long ra = a.getRoundTripTime();
+                long rb = b.getRoundTripTime();
+                return ra < rb ? -1 : (ra == rb ? 0 : 1);
+            }
+        });
+
+        Collections.sort(down, new Comparator<Endpoint>() {
+            public int compare(Endpoint a, Endpoint b) {
+                long d = a.downUntil() - b.downUntil();
+                return d < 0 ? -1 : (d == 0 ? 0 : 1);
+            }
+        });
+
+        healthy.addAll(down);
+
+        return healthy;
+    }
+}
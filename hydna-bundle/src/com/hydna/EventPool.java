@@ -0,0 +1,216 @@
+package com.hydna;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *  A pool of recyclable data events, used for channels that have event
+ *  recycling enabled, see Channel.setRecycleEvents().
+ *
+ *  Each connection owns one pool, and only its listening thread takes
+ *  events from it, so the free lists need no locking. Events released by
+ *  consumer threads are pushed on a lock-free return stack, which the
+ *  listening thread drains when its free list for a size runs out.
+ *
+ *  With leak detection enabled, an event that becomes unreachable
+ *  without being released is reported on System.err, together with where
+ *  it was delivered if the detection is set to record stack traces.
+ *  Leak detection is enabled with the system property
+ *  "com.hydna.leakDetection" set to "simple" or "trace", or by calling
+ *  setLeakDetection().
+ */
+public final class EventPool {
+
+    public static final String LEAK_DETECTION_PROPERTY =
+        "com.hydna.leakDetection";
+
+    public static final int LEAK_DETECTION_OFF = 0;
+    public static final int LEAK_DETECTION_SIMPLE = 1;
+    public static final int LEAK_DETECTION_TRACE = 2;
+
+    // Payload sizes are pooled in powers of two from 64 bytes to 64 KB.
+    private static final int MIN_SIZE_CLASS = 6;
+    private static final int MAX_SIZE_CLASS = 16;
+
+    // Events kept per size class, the rest are left to the GC.
+    private static final int MAX_FREE = 256;
+
+    private static volatile int m_leakDetection = leakDetectionFromProperty();
+
+    private static final AtomicLong m_leaks = new AtomicLong();
+    private static final ReferenceQueue<RecycledChannelData> m_leakQueue =
+        new ReferenceQueue<RecycledChannelData>();
+    private static final Set<LeakRef> m_leakRefs =
+        Collections.newSetFromMap(new ConcurrentHashMap<LeakRef, Boolean>());
+
+    /**
+     *  Tracks one delivery of an event, until it is released.
+     */
+    static final class LeakRef extends PhantomReference<RecycledChannelData> {
+        final String path;
+        final Throwable trace;
+
+        LeakRef(RecycledChannelData event, String path, Throwable trace) {
+            super(event, m_leakQueue);
+            this.path = path;
+            this.trace = trace;
+        }
+    }
+
+    private final ArrayDeque<RecycledChannelData>[] m_free;
+    private final AtomicReference<RecycledChannelData> m_returned;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    EventPool() {
+        m_free = new ArrayDeque[MAX_SIZE_CLASS + 1];
+
+        for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++) {
+            m_free[i] = new ArrayDeque<RecycledChannelData>();
+        }
+
+        m_returned = new AtomicReference<RecycledChannelData>();
+    }
+
+    /**
+     *  Set the leak detection level.
+     *
+     *  @param level One of the LEAK_DETECTION constants.
+     */
+    public static void setLeakDetection(int level) {
+        m_leakDetection = level;
+    }
+
+    public static int getLeakDetection() {
+        return m_leakDetection;
+    }
+
+    /**
+     *  Returns the number of leaked events reported so far.
+     *
+     *  @return The number of leaks.
+     */
+    public static long getLeakCount() {
+        reportLeaks();
+        return m_leaks.get();
+    }
+
+    /**
+     *  Take an event with room for a payload. Only called by the thread
+     *  that owns the pool.
+     *
+     *  @param length The length of the payload.
+     *  @param path The path of the receiving channel, for leak reports.
+     *  @return The event, to be prepared for the payload.
+     */
+    RecycledChannelData acquire(int length, String path) {
+        int sizeClass = sizeClass(length);
+        ArrayDeque<RecycledChannelData> free = m_free[sizeClass];
+        RecycledChannelData event = free.pollFirst();
+        int level = m_leakDetection;
+
+        if (event == null) {
+            drainReturned();
+            event = free.pollFirst();
+        }
+
+        if (event == null) {
+            event = new RecycledChannelData(this, sizeClass);
+        }
+
+        if (level != LEAK_DETECTION_OFF) {
+            reportLeaks();
+            event.m_leakRef = new LeakRef(event, path,
+                level == LEAK_DETECTION_TRACE
+                    ? new Throwable("Event delivered here") : null);
+            m_leakRefs.add(event.m_leakRef);
+        }
+
+        return event;
+    }
+
+    /**
+     *  Return a released event. May be called from any thread.
+     */
+    void recycle(RecycledChannelData event) {
+        RecycledChannelData head;
+        LeakRef leakRef = event.m_leakRef;
+
+        if (leakRef != null) {
+            event.m_leakRef = null;
+            m_leakRefs.remove(leakRef);
+            leakRef.clear();
+        }
+
+        do {
+            head = m_returned.get();
+            event.m_nextReturned = head;
+        } while (m_returned.compareAndSet(head, event) == false);
+    }
+
+    private void drainReturned() {
+        RecycledChannelData event = m_returned.getAndSet(null);
+
+        while (event != null) {
+            RecycledChannelData next = event.m_nextReturned;
+            ArrayDeque<RecycledChannelData> free = m_free[event.getSizeClass()];
+
+            event.m_nextReturned = null;
+
+            if (free.size() < MAX_FREE) {
+                free.addFirst(event);
+            }
+
+            event = next;
+        }
+    }
+
+    private static int sizeClass(int length) {
+        int sizeClass = MIN_SIZE_CLASS;
+
+        while ((1 << sizeClass) < length) {
+            sizeClass++;
+        }
+
+        return sizeClass;
+    }
+
+    private static void reportLeaks() {
+        LeakRef leakRef;
+
+        while ((leakRef = (LeakRef)m_leakQueue.poll()) != null) {
+            if (m_leakRefs.remove(leakRef) == false) {
+                continue;
+            }
+
+            m_leaks.incrementAndGet();
+
+            System.err.println("WARNING: A ChannelEvent on \"" +
+                               leakRef.path + "\" was garbage collected " +
+                               "without being released");
+
+            if (leakRef.trace != null) {
+                leakRef.trace.printStackTrace();
+            }
+        }
+    }
+
+    private static int leakDetectionFromProperty() {
+        String value = System.getProperty(LEAK_DETECTION_PROPERTY, "off");
+
+        if (value.equalsIgnoreCase("trace")) {
+            return LEAK_DETECTION_TRACE;
+        }
+
+        if (value.equalsIgnoreCase("simple")) {
+            return LEAK_DETECTION_SIMPLE;
+        }
+
+        return LEAK_DETECTION_OFF;
+    }
+}
@@ -37,6 +37,7 @@ class Frame {
     static final int PAYLOAD_MAX_LIMIT = 0xFFFF - HEADER_SIZE;
 	
     private ByteBuffer m_bytes;
+    private int m_op;
 	
     public Frame(int channelPtr,
                  int ctype,
@@ -46,6 +47,8 @@ class Frame {
         super();
 		
         short length = HEADER_SIZE;
+
+        m_op = op;
 		
         if (data != null) {
             if (data.capacity() > PAYLOAD_MAX_LIMIT) {
@@ -58,9 +61,12 @@ class Frame {
         m_bytes = ByteBuffer.allocate(length + 2);
         m_bytes.order(ByteOrder.BIG_ENDIAN);
 		
-        m_bytes.putShort(length);
-        m_bytes.putInt(channelPtr);
-        m_bytes.put((byte)((ctype << CTYPE_BITPOS) | (op << OP_BITPOS) | flag));
+        putHeader(m_bytes,
+                  channelPtr,
+                  ctype,
+                  op,
+                  flag,
+                  length - HEADER_SIZE);
 		
         if (data != null) {
             m_bytes.put(data);
@@ -81,7 +87,33 @@ class Frame {
         return new Frame(channelPtr, ctype, op, flag, data);
     }
 	
+    /**
+     *  Write the length prefix and header of a frame, for payloads that
+     *  are written separately.
+     *
+     *  @param buffer The buffer to write to, in big endian order.
+     *  @param channelPtr The channel pointer.
+     *  @param ctype The ContentType of the payload.
+     *  @param op The opcode.
+     *  @param flag The flag.
+     *  @param payloadLength The length of the payload.
+     */
+    static void putHeader(ByteBuffer buffer,
+                          int channelPtr,
+                          int ctype,
+                          int op,
+                          int flag,
+                          int payloadLength) {
+        buffer.putShort((short)(HEADER_SIZE + payloadLength));
+        buffer.putInt(channelPtr);
+        buffer.put((byte)((ctype << CTYPE_BITPOS) | (op << OP_BITPOS) | flag));
+    }
+
     ByteBuffer getData() {
         return m_bytes;
     }
+
+    int getOpcode() {
+        return m_op;
+    }
 }
@@ -0,0 +1,20 @@
+package com.hydna;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ *  The Bundle-Activator of the library. Takes care of resources the
+ *  library leaves outside of its own classloader, such as the connection
+ *  MBeans in the platform MBean server. Not used outside of OSGi.
+ */
+public final class HydnaActivator implements BundleActivator {
+
+    public void start(BundleContext context) {
+        ConnectionMetrics.activate();
+    }
+
+    public void stop(BundleContext context) {
+        ConnectionMetrics.deactivate();
+    }
+}
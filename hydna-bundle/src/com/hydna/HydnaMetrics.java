@@ -0,0 +1,29 @@
+package com.hydna;
+
+import java.util.List;
+
+/**
+ *  Gives access to the metrics of all connections in this JVM.
+ *
+ *  An instance is returned by ConnectionMetrics.getRegistry() and is
+ *  the interface the OSGi metrics service is registered under.
+ */
+public interface HydnaMetrics {
+
+    /**
+     *  Returns the metrics of every host and port that has been
+     *  connected to.
+     *
+     *  @return The connection metrics.
+     */
+    List<ConnectionMetricsMXBean> getConnectionMetrics();
+
+    /**
+     *  Returns the metrics of a specific host and port.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @return The connection metrics or null if never connected.
+     */
+    ConnectionMetricsMXBean getConnectionMetrics(String host, int port);
+}
@@ -0,0 +1,70 @@
+package com.hydna;
+
+/**
+ *  Callbacks for profiling tools, such as the Java Flight Recorder
+ *  events in the hydna-jfr project. A probe is installed with
+ *  HydnaProbes.setProbe(). Methods are called on the thread doing the
+ *  work, and must return quickly.
+ */
+public interface HydnaProbe {
+
+    /**
+     *  Called when a TCP connect and HTTP upgrade has finished.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @param durationNanos The time spent connecting.
+     *  @param error The cause of failure, or null on success.
+     */
+    void connected(String host, int port, long durationNanos, String error);
+
+    /**
+     *  Called when a channel open has finished.
+     *
+     *  @param path The channel path.
+     *  @param resolveNanos Time spent waiting for the resolve response.
+     *  @param openNanos Time spent waiting for the open response.
+     *  @param error The cause of failure, or null on success.
+     */
+    void channelOpened(String path,
+                       long resolveNanos,
+                       long openNanos,
+                       String error);
+
+    /**
+     *  Called after each read from the socket that contained at least
+     *  one complete frame.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @param frames The number of frames decoded.
+     *  @param bytes The number of bytes decoded.
+     */
+    void framesReceived(String host, int port, int frames, int bytes);
+
+    /**
+     *  Called after each frame written to the socket.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @param op The opcode of the frame.
+     *  @param bytes The size of the frame.
+     *  @param durationNanos The time spent writing.
+     *  @param success False if the write failed.
+     */
+    void frameWritten(String host,
+                      int port,
+                      int op,
+                      int bytes,
+                      long durationNanos,
+                      boolean success);
+
+    /**
+     *  Called when a connection is destroyed.
+     *
+     *  @param host The host.
+     *  @param port The port.
+     *  @param cause The cause, or null on a clean shutdown.
+     */
+    void connectionDestroyed(String host, int port, String cause);
+}
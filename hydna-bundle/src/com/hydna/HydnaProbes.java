@@ -0,0 +1,31 @@
+package com.hydna;
+
+/**
+ *  Holds the installed HydnaProbe, if any. When no probe is installed
+ *  the cost at each probe point is a single volatile read.
+ */
+public final class HydnaProbes {
+
+    private static volatile HydnaProbe m_probe;
+
+    private HydnaProbes() {
+    }
+
+    /**
+     *  Install a probe.
+     *
+     *  @param probe The probe, or null to remove the current probe.
+     */
+    public static void setProbe(HydnaProbe probe) {
+        m_probe = probe;
+    }
+
+    /**
+     *  Returns the installed probe.
+     *
+     *  @return The probe or null.
+     */
+    public static HydnaProbe getProbe() {
+        return m_probe;
+    }
+}
@@ -0,0 +1,109 @@
+package com.hydna;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  This class decides how the library, and users of the library, create
+ *  threads for frame listening and channel consumer loops.
+ *
+ *  By default plain platform threads are used. On a JDK with virtual
+ *  thread support, virtual threads can be enabled either by setting the
+ *  system property "com.hydna.virtualThreads" to true or by calling
+ *  setThreadFactory(HydnaThreads.virtualThreadFactory()).
+ *
+ *  The library does not block inside a monitor. Connects, responses
+ *  from the server and events are waited for on latches, semaphores and
+ *  locks, so a waiting virtual thread does not pin its carrier thread.
+ */
+public final class HydnaThreads {
+
+    public static final String VIRTUAL_THREADS_PROPERTY =
+        "com.hydna.virtualThreads";
+
+    private static volatile ThreadFactory m_factory;
+
+    private HydnaThreads() {
+    }
+
+    /**
+     *  Set the thread factory used for all threads created by the library.
+     *
+     *  @param factory The factory, or null to restore the default.
+     */
+    public static void setThreadFactory(ThreadFactory factory) {
+        m_factory = factory;
+    }
+
+    /**
+     *  Returns the thread factory used for all threads created by the
+     *  library.
+     *
+     *  @return The thread factory.
+     */
+    public static ThreadFactory getThreadFactory() {
+        ThreadFactory factory = m_factory;
+
+        if (factory == null) {
+            factory = defaultThreadFactory();
+            m_factory = factory;
+        }
+
+        return factory;
+    }
+
+    /**
+     *  Create a new, not yet started, thread using the current factory.
+     *
+     *  @param runnable The task of the thread.
+     *  @return The thread.
+     */
+    public static Thread newThread(Runnable runnable) {
+        return getThreadFactory().newThread(runnable);
+    }
+
+    /**
+     *  Returns a factory creating virtual threads, or null if the running
+     *  JDK does not support virtual threads.
+     *
+     *  @return The virtual thread factory or null.
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder")
+                                  .getMethod("factory");
+            return (ThreadFactory)factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     *  Checks if virtual threads are supported by the running JDK.
+     *
+     *  @return True if virtual threads are supported.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return virtualThreadFactory() != null;
+    }
+
+    private static ThreadFactory defaultThreadFactory() {
+        ThreadFactory factory;
+
+        if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+            factory = virtualThreadFactory();
+            if (factory != null) {
+                return factory;
+            }
+            System.err.println("WARNING: Virtual threads are not supported");
+        }
+
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable);
+            }
+        };
+    }
+}
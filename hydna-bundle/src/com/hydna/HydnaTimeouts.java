@@ -0,0 +1,97 @@
+package com.hydna;
+
+/**
+ *  Deadlines for the steps of connecting, opening and closing a channel,
+ *  in milliseconds. A step that does not finish in time fails with a
+ *  ChannelError carrying one of the timeout codes of ChannelError.
+ *
+ *  All timeouts default to 30 seconds. A timeout of 0 waits forever,
+ *  which is not recommended, as a server that stops responding would
+ *  then block the calling thread indefinitely.
+ */
+public final class HydnaTimeouts {
+
+    static final long DEFAULT_TIMEOUT = 30000;
+
+    private static volatile long m_connect = DEFAULT_TIMEOUT;
+    private static volatile long m_handshake = DEFAULT_TIMEOUT;
+    private static volatile long m_resolve = DEFAULT_TIMEOUT;
+    private static volatile long m_open = DEFAULT_TIMEOUT;
+    private static volatile long m_close = DEFAULT_TIMEOUT;
+
+    private HydnaTimeouts() {
+    }
+
+    /**
+     *  Set the time allowed for the TCP connect.
+     *
+     *  @param timeout The timeout in milliseconds.
+     */
+    public static void setConnectTimeout(long timeout) {
+        m_connect = check(timeout);
+    }
+
+    public static long getConnectTimeout() {
+        return m_connect;
+    }
+
+    /**
+     *  Set the time allowed for the HTTP upgrade, after the TCP connect.
+     *
+     *  @param timeout The timeout in milliseconds.
+     */
+    public static void setHandshakeTimeout(long timeout) {
+        m_handshake = check(timeout);
+    }
+
+    public static long getHandshakeTimeout() {
+        return m_handshake;
+    }
+
+    /**
+     *  Set the time allowed for the server to resolve a path.
+     *
+     *  @param timeout The timeout in milliseconds.
+     */
+    public static void setResolveTimeout(long timeout) {
+        m_resolve = check(timeout);
+    }
+
+    public static long getResolveTimeout() {
+        return m_resolve;
+    }
+
+    /**
+     *  Set the time allowed for the server to answer an open request.
+     *
+     *  @param timeout The timeout in milliseconds.
+     */
+    public static void setOpenTimeout(long timeout) {
+        m_open = check(timeout);
+    }
+
+    public static long getOpenTimeout() {
+        return m_open;
+    }
+
+    /**
+     *  Set the time allowed for the server to acknowledge a close. When
+     *  it expires the channel is closed locally anyway.
+     *
+     *  @param timeout The timeout in milliseconds.
+     */
+    public static void setCloseTimeout(long timeout) {
+        m_close = check(timeout);
+    }
+
+    public static long getCloseTimeout() {
+        return m_close;
+    }
+
+    private static long check(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        return timeout;
+    }
+}
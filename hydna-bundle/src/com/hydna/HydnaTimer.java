@@ -0,0 +1,227 @@
+package com.hydna;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  A hashed timer wheel shared by all connections and channels, for
+ *  deadlines such as resolve, open and close timeouts and the eviction
+ *  of idle connections.
+ *
+ *  One daemon thread advances the wheel every tick. A timeout is placed
+ *  in the bucket of its deadline, with the number of full revolutions
+ *  left, so scheduling and cancelling are constant time and no thread
+ *  is needed per pending operation. Deadlines are only as precise as
+ *  the tick, which is fine for timeouts.
+ *
+ *  Tasks run on the timer thread and must not block.
+ */
+final class HydnaTimer {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Must be a power of two. One revolution is about five seconds.
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int MAX_TRANSFERS = 100000;
+
+    /**
+     *  A scheduled task. Buckets are linked through the timeouts
+     *  themselves, and only touched by the timer thread.
+     */
+    static final class Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "m_state");
+
+        private final Runnable m_task;
+        private final long m_deadline;
+
+        private volatile int m_state = INIT;
+
+        private long m_rounds;
+        private Timeout m_next;
+        private Timeout m_prev;
+        private int m_bucket = -1;
+
+        Timeout(Runnable task, long deadline) {
+            m_task = task;
+            m_deadline = deadline;
+        }
+
+        /**
+         *  Cancel the task, if it has not run yet.
+         *
+         *  @return True if the task will not run.
+         */
+        boolean cancel() {
+            return STATE.compareAndSet(this, INIT, CANCELLED);
+        }
+
+        boolean isCancelled() {
+            return m_state == CANCELLED;
+        }
+
+        boolean isExpired() {
+            return m_state == EXPIRED;
+        }
+
+        private boolean expire() {
+            return STATE.compareAndSet(this, INIT, EXPIRED);
+        }
+    }
+
+    private static final Queue<Timeout> m_pending =
+        new ConcurrentLinkedQueue<Timeout>();
+
+    private static final Timeout[] m_wheel = new Timeout[WHEEL_SIZE];
+
+    private static Thread m_worker;
+    private static long m_startTime;
+
+    private HydnaTimer() {
+    }
+
+    /**
+     *  Run a task once after a delay.
+     *
+     *  @param task The task.
+     *  @param delay The delay.
+     *  @param unit The unit of the delay.
+     *  @return A handle that can be used to cancel the task.
+     */
+    static Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout;
+
+        start();
+
+        timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        m_pending.add(timeout);
+
+        return timeout;
+    }
+
+    private synchronized static void start() {
+        if (m_worker != null) {
+            return;
+        }
+
+        m_startTime = System.nanoTime();
+
+        m_worker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, "hydna-timer");
+
+        m_worker.setDaemon(true);
+        m_worker.start();
+    }
+
+    private static void work() {
+        long tick = 0;
+
+        for (;;) {
+            long deadline = m_startTime + (tick + 1) * TICK;
+            long now;
+
+            while ((now = System.nanoTime()) - deadline < 0) {
+                LockSupport.parkNanos(deadline - now);
+            }
+
+            transferPending(tick);
+            expireBucket((int)(tick & (WHEEL_SIZE - 1)), now);
+
+            tick++;
+        }
+    }
+
+    /**
+     *  Move newly scheduled timeouts into their buckets. A deadline that
+     *  has already passed goes into the current bucket.
+     */
+    private static void transferPending(long tick) {
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            Timeout timeout = m_pending.poll();
+            long ticks;
+            int bucket;
+
+            if (timeout == null) {
+                return;
+            }
+
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            ticks = (timeout.m_deadline - m_startTime + TICK - 1) / TICK;
+            timeout.m_rounds = Math.max(0, (ticks - tick) / WHEEL_SIZE);
+            bucket = (int)(Math.max(ticks, tick) & (WHEEL_SIZE - 1));
+
+            timeout.m_bucket = bucket;
+            timeout.m_prev = null;
+            timeout.m_next = m_wheel[bucket];
+
+            if (m_wheel[bucket] != null) {
+                m_wheel[bucket].m_prev = timeout;
+            }
+
+            m_wheel[bucket] = timeout;
+        }
+    }
+
+    private static void expireBucket(int bucket, long now) {
+        Timeout timeout = m_wheel[bucket];
+
+        while (timeout != null) {
+            Timeout next = timeout.m_next;
+
+            if (timeout.isCancelled()) {
+                unlink(timeout);
+            } else if (timeout.m_rounds <= 0 &&
+                       timeout.m_deadline - now <= 0) {
+                unlink(timeout);
+
+                if (timeout.expire()) {
+                    try {
+                        timeout.m_task.run();
+                    } catch (Throwable t) {
+                        if (HydnaDebug.HYDNADEBUG) {
+                            DebugHelper.debugPrint("HydnaTimer",
+                                                   0,
+                                                   "Task failed: " + t);
+                        }
+                    }
+                }
+            } else if (timeout.m_rounds > 0) {
+                timeout.m_rounds--;
+            }
+
+            timeout = next;
+        }
+    }
+
+    private static void unlink(Timeout timeout) {
+        int bucket = timeout.m_bucket;
+
+        if (timeout.m_prev != null) {
+            timeout.m_prev.m_next = timeout.m_next;
+        } else {
+            m_wheel[bucket] = timeout.m_next;
+        }
+
+        if (timeout.m_next != null) {
+            timeout.m_next.m_prev = timeout.m_prev;
+        }
+
+        timeout.m_next = null;
+        timeout.m_prev = null;
+        timeout.m_bucket = -1;
+    }
+}
@@ -0,0 +1,175 @@
+package com.hydna;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  A low overhead trace of protocol events, recorded into a preallocated
+ *  ring buffer. Unlike HydnaDebug it can be switched on and off at
+ *  runtime, and recording neither allocates nor formats strings.
+ *
+ *  Each entry holds an event type, a channel pointer, an opcode, a size
+ *  and a System.nanoTime() timestamp. When the ring is full the oldest
+ *  entries are overwritten. Entries written concurrently with a dump may
+ *  show up torn, which is acceptable for diagnostics.
+ *
+ *  The number of entries is read from the system property
+ *  "com.hydna.traceSize" (default 8192, rounded up to a power of two).
+ */
+public final class HydnaTrace {
+
+    public static final String TRACE_SIZE_PROPERTY = "com.hydna.traceSize";
+
+    // Event types
+    public static final int FRAME_IN = 1;
+    public static final int FRAME_OUT = 2;
+    public static final int WRITE_FAILURE = 3;
+    public static final int CHANNEL_OPEN = 4;
+    public static final int CHANNEL_CLOSE = 5;
+    public static final int CONNECT = 6;
+    public static final int DESTROY = 7;
+
+    private static final String[] TYPE_NAMES = {
+        "?", "FRAME_IN", "FRAME_OUT", "WRITE_FAILURE", "CHANNEL_OPEN",
+        "CHANNEL_CLOSE", "CONNECT", "DESTROY"
+    };
+
+    private static final String[] OPCODE_NAMES = {
+        "KEEPALIVE", "OPEN", "DATA", "SIGNAL", "RESOLVE", "5", "6", "7"
+    };
+
+    private static volatile boolean m_enabled = false;
+    private static volatile boolean m_dumpOnError = false;
+
+    private static final int m_mask;
+    private static final long[] m_entries;
+    private static final AtomicLong m_next = new AtomicLong();
+
+    static {
+        int size = Integer.getInteger(TRACE_SIZE_PROPERTY, 8192);
+        int capacity = 1;
+
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+
+        m_mask = capacity - 1;
+        m_entries = new long[capacity * 2];
+    }
+
+    private HydnaTrace() {
+    }
+
+    /**
+     *  Checks if tracing is enabled. Callers on hot paths should check
+     *  this before calling record().
+     *
+     *  @return True if tracing is enabled.
+     */
+    public static boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     *  Enable or disable tracing.
+     *
+     *  @param enabled True to enable tracing.
+     */
+    public static void setEnabled(boolean enabled) {
+        m_enabled = enabled;
+    }
+
+    /**
+     *  Dump the trace to System.err when a connection is destroyed
+     *  because of an error.
+     *
+     *  @param dumpOnError True to dump on error.
+     */
+    public static void setDumpOnError(boolean dumpOnError) {
+        m_dumpOnError = dumpOnError;
+    }
+
+    /**
+     *  Discard all recorded entries.
+     */
+    public static synchronized void clear() {
+        for (int i = 0; i < m_entries.length; i++) {
+            m_entries[i] = 0;
+        }
+        m_next.set(0);
+    }
+
+    /**
+     *  Record an entry, if tracing is enabled.
+     *
+     *  @param type The event type.
+     *  @param channelPtr The channel pointer, or 0.
+     *  @param op The opcode, or 0.
+     *  @param size The size in bytes, or 0.
+     */
+    static void record(int type, int channelPtr, int op, int size) {
+        int slot;
+
+        if (m_enabled == false) {
+            return;
+        }
+
+        slot = (int)(m_next.getAndIncrement() & m_mask) << 1;
+
+        m_entries[slot] = ((long)(type & 0xFF) << 56) |
+                          ((long)(op & 0xFF) << 48) |
+                          ((long)(size & 0xFFFF) << 32) |
+                          (channelPtr & 0xFFFFFFFFL);
+        m_entries[slot + 1] = System.nanoTime();
+    }
+
+    /**
+     *  Called when a connection is destroyed because of an error.
+     */
+    static void error() {
+        if (m_enabled && m_dumpOnError) {
+            dump(System.err);
+        }
+    }
+
+    /**
+     *  Print all recorded entries, oldest first.
+     *
+     *  @param out The stream to print to.
+     */
+    public static synchronized void dump(PrintStream out) {
+        long next = m_next.get();
+        long capacity = m_mask + 1;
+        long first = Math.max(0, next - capacity);
+        long start = -1;
+
+        out.printf("HydnaTrace: %d entries%n", next - first);
+
+        for (long i = first; i < next; i++) {
+            int slot = (int)(i & m_mask) << 1;
+            long word = m_entries[slot];
+            long time = m_entries[slot + 1];
+            int type = (int)(word >>> 56) & 0xFF;
+            int op = (int)(word >>> 48) & 0xFF;
+            int size = (int)(word >>> 32) & 0xFFFF;
+            int channelPtr = (int)word;
+
+            if (start == -1) {
+                start = time;
+            }
+
+            out.printf("HydnaTrace: %12d ns %14s %8x %10s %6d%n",
+                       time - start,
+                       type < TYPE_NAMES.length ? TYPE_NAMES[type] : "?",
+                       channelPtr,
+                       isFrameEvent(type) ? OPCODE_NAMES[op & 0x7] : "-",
+                       size);
+        }
+    }
+
+    private static boolean isFrameEvent(int type) {
+        return type == FRAME_IN ||
+               type == FRAME_OUT ||
+               type == WRITE_FAILURE;
+    }
+}
@@ -0,0 +1,21 @@
+package com.hydna;
+
+/**
+ *  Extracts the key of a data message, used to keep the messages of a
+ *  key in order while messages of different keys are handled in
+ *  parallel, see PartitionedDispatcher.
+ *
+ *  Keys are compared with equals() and hashCode(). A key must not refer
+ *  to the payload buffer of the event, which may be recycled.
+ */
+public interface KeyExtractor {
+
+    /**
+     *  Returns the key of a message. Must not change the position of the
+     *  payload.
+     *
+     *  @param data The message.
+     *  @return The key, or null for messages without a key.
+     */
+    Object extractKey(ChannelData data);
+}
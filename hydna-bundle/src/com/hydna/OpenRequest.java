@@ -1,6 +1,7 @@
 package com.hydna;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *  This class is used internally by both the Channel and the Connection class.
@@ -12,6 +13,12 @@ class OpenRequest {
     private int m_channelPtr;
     private int m_mode;
     private ByteBuffer m_token;
+    private boolean m_cached;
+    private boolean m_retry;
+
+    // The current step times two, plus one once the step has been
+    // answered or has timed out.
+    private final AtomicInteger m_state = new AtomicInteger();
 	
     public OpenRequest(Channel channel,
                        ByteBuffer path,
@@ -39,13 +46,75 @@ class OpenRequest {
         return m_path;
     }
 
+    /**
+     *  Start waiting for the server to answer the next step.
+     *
+     *  @return The step, to be passed to complete(int) by its timeout.
+     */
+    int arm() {
+        int step = (m_state.get() + 2) & ~1;
+        m_state.set(step);
+        return step;
+    }
+
+    /**
+     *  Claim the right to complete the current step. The response of the
+     *  server and the timeout race for it, and only the winner may wake
+     *  the channel.
+     *
+     *  @return True if the caller won.
+     */
+    boolean complete() {
+        int state = m_state.get();
+        return (state & 1) == 0 && m_state.compareAndSet(state, state + 1);
+    }
+
+    /**
+     *  Claim the right to complete a step, if it is still the current
+     *  step.
+     *
+     *  @param step The step returned by arm().
+     *  @return True if the caller won.
+     */
+    boolean complete(int step) {
+        return m_state.compareAndSet(step, step + 1);
+    }
+
+    boolean isCompleted() {
+        return (m_state.get() & 1) != 0;
+    }
+
+    /**
+     *  Returns true if the channel pointer was taken from the resolve
+     *  cache of the connection, and no RESOLVE was sent.
+     */
+    boolean isCached() {
+        return m_cached;
+    }
+
+    void setCached(boolean cached) {
+        m_cached = cached;
+    }
+
+    /**
+     *  Returns true if a cached pointer was rejected and the path is
+     *  being resolved again by the connection.
+     */
+    boolean isRetry() {
+        return m_retry;
+    }
+
+    void setRetry(boolean retry) {
+        m_retry = retry;
+    }
+
     public Frame getFrame() {
         return Frame.create(
             m_channelPtr,
             ContentType.UTF8,
             Frame.OPEN,
             (byte)m_mode,
-            m_token
+            view(m_token)
         );
     }	
 
@@ -55,7 +124,24 @@ class OpenRequest {
             ContentType.UTF8,
             Frame.RESOLVE,
             0,
-            m_path
+            view(m_path)
         );
     }	
+
+    /**
+     *  Returns a view of the whole buffer, as a frame consumes the data it
+     *  is created from and a request may send its frames more than once.
+     */
+    private static ByteBuffer view(ByteBuffer data) {
+        ByteBuffer view;
+
+        if (data == null) {
+            return null;
+        }
+
+        view = data.duplicate();
+        view.clear();
+
+        return view;
+    }
 }
@@ -0,0 +1,300 @@
+package com.hydna;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Consumes a channel and hands its events to a fixed number of worker
+ *  lanes, partitioned by the key of each data message. Messages of one
+ *  key always go to the same lane and are handled in order, while
+ *  different keys are handled in parallel.
+ *
+ *  Signals, which have no key, go to the first lane. The end signal or
+ *  error of the channel is handled after every lane has finished. Each
+ *  event is released once handled, and an event the handler or the key
+ *  extractor throws on is passed to ChannelEventHandler.handleFailure()
+ *  first.
+ *
+ *  Each lane holds a bounded number of events. A lane that is full holds
+ *  up the dispatching thread, so events back up in the channel, where
+ *  Channel.setQueueLimit() can bound them further.
+ */
+public final class PartitionedDispatcher {
+
+    public static final int DEFAULT_LANE_CAPACITY = 1024;
+
+    // Tells a lane to stop, once the events before it are handled.
+    private static final ChannelEvent STOP =
+        new ChannelEvent(null, ContentType.UTF8, null);
+
+    private final Channel m_channel;
+    private final KeyExtractor m_extractor;
+    private final ChannelEventHandler m_handler;
+    private final BlockingQueue<ChannelEvent>[] m_lanes;
+    private final Thread[] m_workers;
+
+    private Thread m_dispatcher = null;
+
+    /**
+     *  Initializes a dispatcher with the default lane capacity.
+     *
+     *  @param channel The channel to consume.
+     *  @param extractor Extracts the key of each data message.
+     *  @param handler Handles the events.
+     *  @param lanes The number of lanes, and worker threads.
+     */
+    public PartitionedDispatcher(Channel channel,
+                                 KeyExtractor extractor,
+                                 ChannelEventHandler handler,
+                                 int lanes) {
+        this(channel, extractor, handler, lanes, DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     *  Initializes a dispatcher.
+     *
+     *  @param channel The channel to consume.
+     *  @param extractor Extracts the key of each data message.
+     *  @param handler Handles the events.
+     *  @param lanes The number of lanes, and worker threads.
+     *  @param laneCapacity The number of events each lane can hold.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PartitionedDispatcher(Channel channel,
+                                 KeyExtractor extractor,
+                                 ChannelEventHandler handler,
+                                 int lanes,
+                                 int laneCapacity) {
+        if (channel == null || extractor == null || handler == null) {
+            throw new NullPointerException();
+        }
+
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes must be positive");
+        }
+
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("laneCapacity must be positive");
+        }
+
+        m_channel = channel;
+        m_extractor = extractor;
+        m_handler = handler;
+        m_lanes = new BlockingQueue[lanes];
+        m_workers = new Thread[lanes];
+
+        for (int i = 0; i < lanes; i++) {
+            m_lanes[i] = new ArrayBlockingQueue<ChannelEvent>(laneCapacity);
+        }
+    }
+
+    /**
+     *  Start the dispatching thread and the lane threads, created with
+     *  HydnaThreads.
+     */
+    public synchronized void start() {
+        if (m_dispatcher != null) {
+            throw new IllegalStateException("Dispatcher already started");
+        }
+
+        for (int i = 0; i < m_lanes.length; i++) {
+            final BlockingQueue<ChannelEvent> lane = m_lanes[i];
+
+            m_workers[i] = HydnaThreads.newThread(new Runnable() {
+                public void run() {
+                    work(lane);
+                }
+            });
+            m_workers[i].start();
+        }
+
+        m_dispatcher = HydnaThreads.newThread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        });
+        m_dispatcher.start();
+    }
+
+    /**
+     *  Stop taking events from the channel. Events already in a lane are
+     *  still handled. The channel is left open.
+     */
+    public synchronized void stop() {
+        if (m_dispatcher != null) {
+            m_dispatcher.interrupt();
+        }
+    }
+
+    /**
+     *  Wait until the channel has ended or failed, or the dispatcher has
+     *  been stopped, and every lane has finished.
+     */
+    public void awaitTermination() throws InterruptedException {
+        Thread dispatcher;
+
+        synchronized (this) {
+            dispatcher = m_dispatcher;
+        }
+
+        if (dispatcher == null) {
+            throw new IllegalStateException("Dispatcher not started");
+        }
+
+        dispatcher.join();
+    }
+
+    /**
+     *  Returns the number of lanes.
+     *
+     *  @return The number of lanes.
+     */
+    public int getLaneCount() {
+        return m_lanes.length;
+    }
+
+    private void dispatch() {
+        ChannelEvent endSignal = null;
+        ChannelError error = null;
+        ChannelEvent event;
+        int lane;
+
+        // The lanes are always stopped, whatever ends the dispatching.
+        try {
+            for (;;) {
+                event = m_channel.nextEvent();
+
+                if (event instanceof ChannelEndSignal) {
+                    endSignal = event;
+                    return;
+                }
+
+                try {
+                    lane = laneOf(event);
+                } catch (Throwable e) {
+                    fail(event, e);
+                    event.release();
+                    continue;
+                }
+
+                try {
+                    m_lanes[lane].put(event);
+                } catch (InterruptedException e) {
+                    event.release();
+                    throw e;
+                }
+            }
+        } catch (ChannelError e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            finish(endSignal, error);
+        }
+    }
+
+    private int laneOf(ChannelEvent event) {
+        Object key;
+        int hash;
+
+        if ((event instanceof ChannelData) == false ||
+            (key = m_extractor.extractKey((ChannelData)event)) == null) {
+            return 0;
+        }
+
+        hash = key.hashCode();
+        hash ^= hash >>> 16;
+
+        return (hash & 0x7FFFFFFF) % m_lanes.length;
+    }
+
+    /**
+     *  Stop the lanes, wait for them, and then hand over the end signal
+     *  or error.
+     */
+    private void finish(ChannelEvent endSignal, ChannelError error) {
+        boolean interrupted = false;
+
+        // A lane whose thread has died can not take the stop, so it is
+        // not waited for.
+        for (int i = 0; i < m_lanes.length; i++) {
+            for (;;) {
+                try {
+                    if (m_lanes[i].offer(STOP, 100, TimeUnit.MILLISECONDS) ||
+                        m_workers[i].isAlive() == false) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        for (Thread worker : m_workers) {
+            for (;;) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (endSignal != null) {
+            try {
+                m_handler.handleEvent(endSignal);
+            } catch (Throwable e) {
+                fail(endSignal, e);
+            } finally {
+                endSignal.release();
+            }
+        }
+
+        if (error != null) {
+            m_handler.handleError(error);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work(BlockingQueue<ChannelEvent> lane) {
+        ChannelEvent event;
+
+        for (;;) {
+            try {
+                event = lane.take();
+            } catch (InterruptedException e) {
+                // Lanes are stopped through the queue, not by interrupts.
+                continue;
+            }
+
+            if (event == STOP) {
+                return;
+            }
+
+            try {
+                m_handler.handleEvent(event);
+            } catch (Throwable e) {
+                fail(event, e);
+            } finally {
+                event.release();
+            }
+        }
+    }
+
+    private void fail(ChannelEvent event, Throwable error) {
+        try {
+            m_handler.handleFailure(event, error);
+        } catch (Throwable e) {
+            if (HydnaDebug.HYDNADEBUG) {
+                DebugHelper.debugPrint("PartitionedDispatcher",
+                                       0,
+                                       "Failure handler failed: " + e);
+            }
+        }
+    }
+}
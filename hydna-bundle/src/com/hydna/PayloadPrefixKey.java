@@ -0,0 +1,43 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  A KeyExtractor that uses the first bytes of the payload as the key,
+ *  for protocols that start each message with a fixed size entity id.
+ *  Shorter payloads use all of their bytes.
+ */
+public final class PayloadPrefixKey implements KeyExtractor {
+
+    private final int m_length;
+
+    /**
+     *  Initializes the extractor.
+     *
+     *  @param length The number of bytes in the key.
+     */
+    public PayloadPrefixKey(int length) {
+        if (length < 1) {
+            throw new IllegalArgumentException("length must be positive");
+        }
+
+        m_length = length;
+    }
+
+    /**
+     *  Returns a copy of the prefix, which compares by content.
+     */
+    public Object extractKey(ChannelData data) {
+        ByteBuffer payload = data.getData();
+        byte[] key;
+
+        if (payload == null) {
+            return null;
+        }
+
+        key = new byte[Math.min(m_length, payload.remaining())];
+        payload.duplicate().get(key);
+
+        return ByteBuffer.wrap(key);
+    }
+}
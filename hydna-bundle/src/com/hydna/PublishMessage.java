@@ -0,0 +1,167 @@
+package com.hydna;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ *  A data message that is encoded once and can be published to many
+ *  channels, any number of times.
+ *
+ *  The payload is copied once, into a direct buffer, when the message
+ *  is created. Publishing to the channels of one connection writes one
+ *  header per channel, each followed by the shared payload, in a single
+ *  gathering write, so the cost of a fan-out grows with the number of
+ *  headers rather than channels times the payload.
+ */
+public final class PublishMessage {
+
+    private final int m_ctype;
+    private final int m_priority;
+    private final ByteBuffer m_payload;
+
+    /**
+     *  Initializes a UTF8 message with priority 0.
+     *
+     *  @param message The payload.
+     */
+    public PublishMessage(String message) throws ChannelError {
+        this(message, 0);
+    }
+
+    /**
+     *  Initializes a UTF8 message.
+     *
+     *  @param message The payload.
+     *  @param priority The priority of the payload.
+     */
+    public PublishMessage(String message, int priority) throws ChannelError {
+        this(ContentType.UTF8, priority, encode(message));
+    }
+
+    /**
+     *  Initializes a binary message with priority 0.
+     *
+     *  @param data The payload, which is copied from its position to its
+     *              limit.
+     */
+    public PublishMessage(ByteBuffer data) throws ChannelError {
+        this(data, 0);
+    }
+
+    /**
+     *  Initializes a binary message.
+     *
+     *  @param data The payload, which is copied from its position to its
+     *              limit.
+     *  @param priority The priority of the payload.
+     */
+    public PublishMessage(ByteBuffer data, int priority) throws ChannelError {
+        this(ContentType.BINARY, priority, data);
+    }
+
+    private PublishMessage(int ctype, int priority, ByteBuffer data)
+        throws ChannelError {
+        ByteBuffer payload;
+
+        if (data == null || data.remaining() == 0) {
+            throw new ChannelError("Payload data cannot be zero-length");
+        }
+
+        if (data.remaining() > Frame.PAYLOAD_MAX_LIMIT) {
+            throw new ChannelError("Payload max limit reached");
+        }
+
+        if (priority < 0 || priority > 7) {
+            throw new ChannelError("Priority must be between 0 - 7");
+        }
+
+        payload = ByteBuffer.allocateDirect(data.remaining());
+        payload.put(data.duplicate());
+        payload.flip();
+
+        m_ctype = ctype;
+        m_priority = priority;
+        m_payload = payload.asReadOnlyBuffer();
+    }
+
+    /**
+     *  Returns a read-only view of the payload.
+     *
+     *  @return The payload.
+     */
+    public ByteBuffer getData() {
+        return m_payload.duplicate();
+    }
+
+    public int getPriority() {
+        return m_priority;
+    }
+
+    /**
+     *  Publish the message to a set of channels. Every channel must be
+     *  open and writable, or nothing is sent.
+     *
+     *  @param channels The channels.
+     *  @return The number of channels the message was written to, which
+     *          is less than the number of channels if a connection
+     *          failed.
+     */
+    public int publish(Collection<Channel> channels) throws ChannelError {
+        ChannelState[] states = new ChannelState[channels.size()];
+        int[] channelPtrs = new int[states.length];
+        Connection connection;
+        int published = 0;
+        int count;
+        int n = 0;
+
+        for (Channel channel : channels) {
+            ChannelState state = channel.getState();
+
+            if (state.connected == false || state.connection == null) {
+                throw new ChannelError("Not connected");
+            }
+
+            if (state.isWritable() == false) {
+                throw new ChannelError(
+                    "You do not have permission to send data");
+            }
+
+            states[n++] = state;
+        }
+
+        // One gathering write per connection.
+        for (int i = 0; i < n; i++) {
+            if ((connection = states[i].connection) == null) {
+                continue;
+            }
+
+            count = 0;
+
+            for (int j = i; j < n; j++) {
+                if (states[j].connection == connection) {
+                    channelPtrs[count++] = states[j].channelPtr;
+                    states[j] = ChannelState.INITIAL;
+                }
+            }
+
+            if (connection.writeShared(channelPtrs,
+                                       count,
+                                       m_ctype,
+                                       m_priority,
+                                       m_payload)) {
+                published += count;
+            }
+        }
+
+        return published;
+    }
+
+    private static ByteBuffer encode(String message) throws ChannelError {
+        try {
+            return ByteBuffer.wrap(message.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new ChannelError("Unable to encode payload");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.hydna;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ *  A ChannelData that, together with its payload buffer, is taken from
+ *  an EventPool and returned to it when the last reference is released.
+ *
+ *  The payload buffer is sized to a power of two, so its capacity may be
+ *  larger than the payload. The payload is between position and limit.
+ */
+final class RecycledChannelData extends ChannelData {
+
+    private static final AtomicIntegerFieldUpdater<RecycledChannelData> REFS =
+        AtomicIntegerFieldUpdater.newUpdater(RecycledChannelData.class,
+                                             "m_refCount");
+
+    private final EventPool m_pool;
+    private final ByteBuffer m_buffer;
+    private final int m_sizeClass;
+
+    private volatile int m_refCount;
+
+    // Link in the return stack of the pool.
+    RecycledChannelData m_nextReturned;
+
+    // Set while leak detection tracks this event.
+    EventPool.LeakRef m_leakRef;
+
+    RecycledChannelData(EventPool pool, int sizeClass) {
+        super(null, ContentType.UTF8, 0, null);
+        m_pool = pool;
+        m_sizeClass = sizeClass;
+        m_buffer = ByteBuffer.allocate(1 << sizeClass);
+        m_buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    int getSizeClass() {
+        return m_sizeClass;
+    }
+
+    /**
+     *  Prepare the buffer for a payload of the given length.
+     *
+     *  @return The buffer, in write mode, limited to the length.
+     */
+    ByteBuffer prepare(int length) {
+        m_buffer.clear();
+        m_buffer.limit(length);
+        m_refCount = 1;
+        return m_buffer;
+    }
+
+    /**
+     *  Returns the length of the payload being written.
+     */
+    int prepareLength() {
+        return m_buffer.limit();
+    }
+
+    /**
+     *  Point the event at a channel, once the payload has been written.
+     */
+    void init(Channel target, int ctype, int flag) {
+        m_buffer.flip();
+        reset(target, ctype, m_buffer);
+        setPriority(flag);
+    }
+
+    /**
+     *  Copies the payload, as the buffer goes back to the pool once this
+     *  event is released.
+     */
+    @Override
+    ChannelEvent copyFor(Channel target) {
+        ByteBuffer data = ByteBuffer.allocate(m_buffer.remaining());
+
+        data.put(m_buffer.duplicate());
+        data.flip();
+
+        return new ChannelData(target,
+                               getContentType(),
+                               getPriority(),
+                               data.asReadOnlyBuffer());
+    }
+
+    @Override
+    public ChannelEvent retain() {
+        for (;;) {
+            int refs = m_refCount;
+
+            if (refs <= 0) {
+                throw new IllegalStateException("Event already released");
+            }
+
+            if (REFS.compareAndSet(this, refs, refs + 1)) {
+                return this;
+            }
+        }
+    }
+
+    @Override
+    public boolean release() {
+        for (;;) {
+            int refs = m_refCount;
+
+            if (refs <= 0) {
+                throw new IllegalStateException("Event already released");
+            }
+
+            if (REFS.compareAndSet(this, refs, refs - 1)) {
+                if (refs == 1) {
+                    reset(null, ContentType.UTF8, null);
+                    m_pool.recycle(this);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public int refCount() {
+        return m_refCount;
+    }
+}
@@ -54,8 +54,8 @@ public class URL {
             host = host.substring(0, pos);
         }
 
-        // Take out the port
-        pos = host.lastIndexOf(":");
+        // Take out the port, unless host is a list of "host:port" pairs
+        pos = host.indexOf(",") == -1 ? host.lastIndexOf(":") : -1;
         if (pos != -1) {
             try {
                 port = Short.parseShort(host.substring(pos + 1), 10);
@@ -0,0 +1,177 @@
+package com.hydna;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ *  Tests ChannelTable against a HashMap, and its lock free lookups.
+ */
+public class ChannelTableTest extends TestCase {
+
+    private ChannelTable m_table;
+    private Channel[] m_channels;
+
+    protected void setUp() {
+        m_table = new ChannelTable();
+        m_channels = new Channel[16];
+
+        for (int i = 0; i < m_channels.length; i++) {
+            m_channels[i] = new Channel();
+        }
+    }
+
+    public void testPutGetRemove() {
+        m_table.put(1, m_channels[0]);
+        m_table.put(2, m_channels[1]);
+
+        assertSame(m_channels[0], m_table.get(1));
+        assertSame(m_channels[1], m_table.get(2));
+        assertNull(m_table.get(3));
+        assertEquals(2, m_table.size());
+
+        assertSame(m_channels[0], m_table.remove(1));
+        assertNull(m_table.remove(1));
+        assertNull(m_table.get(1));
+        assertSame(m_channels[1], m_table.get(2));
+        assertEquals(1, m_table.size());
+    }
+
+    public void testPutReplaces() {
+        m_table.put(1, m_channels[0]);
+        m_table.put(1, m_channels[1]);
+
+        assertSame(m_channels[1], m_table.get(1));
+        assertEquals(1, m_table.size());
+        assertEquals(1, m_table.values().length);
+        assertSame(m_channels[1], m_table.values()[0]);
+    }
+
+    public void testRemoveChannel() {
+        m_table.put(1, m_channels[0]);
+        m_table.put(2, m_channels[1]);
+
+        assertTrue(m_table.remove(m_channels[0]));
+        assertFalse(m_table.remove(m_channels[0]));
+        assertNull(m_table.get(1));
+        assertEquals(1, m_table.size());
+    }
+
+    public void testValuesIsSnapshot() {
+        Channel[] values;
+
+        m_table.put(1, m_channels[0]);
+        values = m_table.values();
+        m_table.put(2, m_channels[1]);
+
+        assertEquals(1, values.length);
+        assertEquals(2, m_table.values().length);
+    }
+
+    public void testClear() {
+        for (int ptr = 1; ptr <= 100; ptr++) {
+            m_table.put(ptr, m_channels[ptr % m_channels.length]);
+        }
+
+        m_table.clear();
+
+        assertEquals(0, m_table.size());
+        assertEquals(0, m_table.values().length);
+        assertNull(m_table.get(50));
+    }
+
+    public void testGrowAndShrink() {
+        int count = 10000;
+
+        for (int ptr = 1; ptr <= count; ptr++) {
+            m_table.put(ptr, m_channels[ptr % m_channels.length]);
+        }
+
+        assertEquals(count, m_table.size());
+
+        for (int ptr = 1; ptr <= count; ptr++) {
+            assertSame(m_channels[ptr % m_channels.length], m_table.get(ptr));
+        }
+
+        for (int ptr = 1; ptr <= count; ptr++) {
+            if (ptr != 4711) {
+                assertNotNull(m_table.remove(ptr));
+            }
+        }
+
+        assertEquals(1, m_table.size());
+        assertSame(m_channels[4711 % m_channels.length], m_table.get(4711));
+    }
+
+    public void testMatchesHashMap() {
+        Map<Integer, Channel> expected = new HashMap<Integer, Channel>();
+        Random random = new Random(1);
+        Channel channel;
+        int ptr;
+
+        for (int op = 0; op < 200000; op++) {
+            // Negative pointers too, the table must not assume a sign.
+            ptr = random.nextInt(300) - 5;
+
+            switch (random.nextInt(3)) {
+                case 0:
+                channel = m_channels[random.nextInt(m_channels.length)];
+                m_table.put(ptr, channel);
+                expected.put(ptr, channel);
+                break;
+
+                case 1:
+                assertSame(expected.remove(ptr), m_table.remove(ptr));
+                break;
+
+                default:
+                assertSame(expected.get(ptr), m_table.get(ptr));
+                break;
+            }
+
+            assertEquals(expected.size(), m_table.size());
+        }
+
+        assertEquals(new HashSet<Channel>(expected.values()),
+                     new HashSet<Channel>(Arrays.asList(m_table.values())));
+    }
+
+    public void testGetDuringMutation() throws Exception {
+        final Channel kept = m_channels[0];
+        final Channel churned = m_channels[1];
+        Thread writer;
+        int errors = 0;
+        Channel channel;
+
+        m_table.put(7, kept);
+
+        // Grows, shrinks and fills the table with tombstones.
+        writer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 500000; i++) {
+                    m_table.put(1000 + (i % 500), churned);
+                    m_table.remove(1000 + ((i + 250) % 500));
+                }
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            if (m_table.get(7) != kept) {
+                errors++;
+            }
+
+            channel = m_table.get(1000);
+
+            if (channel != null && channel != churned) {
+                errors++;
+            }
+        }
+
+        assertEquals(0, errors);
+    }
+}
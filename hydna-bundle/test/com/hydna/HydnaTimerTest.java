@@ -0,0 +1,101 @@
+package com.hydna;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ *  Tests HydnaTimer expiry and cancellation.
+ */
+public class HydnaTimerTest extends TestCase {
+
+    public void testTaskRuns() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        HydnaTimer.Timeout timeout;
+
+        timeout = HydnaTimer.schedule(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertFalse(timeout.isCancelled());
+    }
+
+    public void testTaskDoesNotRunEarly() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        HydnaTimer.schedule(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >=
+                   TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        HydnaTimer.Timeout timeout;
+
+        timeout = HydnaTimer.schedule(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+
+        assertFalse(ran.await(300, TimeUnit.MILLISECONDS));
+        assertFalse(timeout.isExpired());
+    }
+
+    public void testTasksRunInDeadlineOrder() throws Exception {
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch ran = new CountDownLatch(3);
+        int[] delays = { 150, 50, 100 };
+
+        for (final int delay : delays) {
+            HydnaTimer.schedule(new Runnable() {
+                public void run() {
+                    order.add(delay);
+                    ran.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(50), order.get(0));
+        assertEquals(Integer.valueOf(100), order.get(1));
+        assertEquals(Integer.valueOf(150), order.get(2));
+    }
+
+    public void testFailingTaskDoesNotStopTimer() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        HydnaTimer.schedule(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("task failed");
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        HydnaTimer.schedule(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+    }
+}
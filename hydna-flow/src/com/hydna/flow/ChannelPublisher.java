@@ -0,0 +1,112 @@
+package com.hydna.flow;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.hydna.Channel;
+import com.hydna.ChannelEvent;
+
+/**
+ *  Publishes the events of an open Channel to one Flow.Subscriber.
+ *
+ *  Events are delivered on an executor as the subscriber requests them.
+ *  Events the subscriber has not asked for yet wait in the event queue
+ *  of the channel, which is bounded to the buffer size. Once the queue
+ *  of every channel on a connection is full, the connection stops
+ *  reading from the socket until a subscriber catches up, see
+ *  Channel.setQueueLimit().
+ *
+ *  The end signal of the channel is delivered with onNext(), followed by
+ *  onComplete(). A channel error is delivered with onError(). If the
+ *  channel recycles its events, the subscriber must release each event.
+ *  Cancelling the subscription does not close the channel, but removes
+ *  the queue limit again.
+ */
+public class ChannelPublisher implements Flow.Publisher<ChannelEvent> {
+
+    public static final int DEFAULT_BUFFER_SIZE = Flow.defaultBufferSize();
+
+    private static final Flow.Subscription REJECTED = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final Channel m_channel;
+    private final Executor m_executor;
+    private final int m_bufferSize;
+    private final AtomicBoolean m_subscribed = new AtomicBoolean();
+
+    /**
+     *  Initializes a publisher that delivers on the common pool, with the
+     *  default buffer size.
+     *
+     *  @param channel The channel.
+     */
+    public ChannelPublisher(Channel channel) {
+        this(channel, ForkJoinPool.commonPool(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     *  Initializes a publisher.
+     *
+     *  @param channel The channel.
+     *  @param executor The executor that calls the subscriber.
+     *  @param bufferSize The number of events to queue ahead of demand.
+     */
+    public ChannelPublisher(Channel channel, Executor executor, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+
+        m_channel = Objects.requireNonNull(channel);
+        m_executor = Objects.requireNonNull(executor);
+        m_bufferSize = bufferSize;
+    }
+
+    /**
+     *  Subscribe to the events of the channel. Events are taken from the
+     *  channel as they are consumed, so a channel can only have one
+     *  subscriber, and later subscribers are rejected with onError().
+     *
+     *  @param subscriber The subscriber.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ChannelEvent> subscriber) {
+        ChannelSubscription subscription;
+
+        Objects.requireNonNull(subscriber);
+
+        if (m_subscribed.compareAndSet(false, true) == false) {
+            subscriber.onSubscribe(REJECTED);
+            subscriber.onError(
+                new IllegalStateException("The channel already has a subscriber"));
+            return;
+        }
+
+        subscription = new ChannelSubscription(m_channel,
+                                               subscriber,
+                                               m_executor);
+
+        m_channel.setQueueLimit(m_bufferSize);
+        subscriber.onSubscribe(subscription);
+
+        // Delivers events queued before the subscription, if any.
+        m_channel.setListener(subscription);
+    }
+
+    public Channel getChannel() {
+        return m_channel;
+    }
+
+    public int getBufferSize() {
+        return m_bufferSize;
+    }
+}
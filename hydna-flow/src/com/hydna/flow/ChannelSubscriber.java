@@ -0,0 +1,198 @@
+package com.hydna.flow;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hydna.Channel;
+import com.hydna.ChannelError;
+
+/**
+ *  Sends the buffers of a Flow.Publisher as data messages on an open
+ *  Channel.
+ *
+ *  At most a window of buffers is requested ahead. Buffers are sent on
+ *  an executor, and each completed send requests one more, so a
+ *  publisher is held back as soon as writes to the connection stall.
+ *
+ *  The channel is not closed when the publisher completes. The outcome
+ *  is reported through getCompletion(), which fails if the publisher
+ *  fails or a buffer can not be sent, in which case the subscription is
+ *  cancelled.
+ */
+public class ChannelSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_WINDOW = 16;
+
+    private final Channel m_channel;
+    private final int m_priority;
+    private final Executor m_executor;
+    private final int m_window;
+
+    private final Queue<ByteBuffer> m_queue =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger m_pending = new AtomicInteger();
+    private final CompletableFuture<Void> m_completion =
+        new CompletableFuture<Void>();
+
+    private volatile Flow.Subscription m_subscription = null;
+    private volatile boolean m_done = false;
+    private volatile Throwable m_error = null;
+
+    private final Runnable m_drain = new Runnable() {
+        @Override
+        public void run() {
+            int missed = 1;
+
+            do {
+                drain();
+                missed = m_pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    };
+
+    /**
+     *  Initializes a subscriber that sends with priority 0 on the common
+     *  pool, with the default window.
+     *
+     *  @param channel The channel.
+     */
+    public ChannelSubscriber(Channel channel) {
+        this(channel, 0, ForkJoinPool.commonPool(), DEFAULT_WINDOW);
+    }
+
+    /**
+     *  Initializes a subscriber.
+     *
+     *  @param channel The channel.
+     *  @param priority The priority of the data messages.
+     *  @param executor The executor that sends the buffers.
+     *  @param window The maximum number of buffers requested ahead.
+     */
+    public ChannelSubscriber(Channel channel,
+                             int priority,
+                             Executor executor,
+                             int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+
+        m_channel = Objects.requireNonNull(channel);
+        m_priority = priority;
+        m_executor = Objects.requireNonNull(executor);
+        m_window = window;
+    }
+
+    /**
+     *  Returns a future that completes once every buffer has been sent
+     *  and the publisher has completed.
+     *
+     *  @return The completion.
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return m_completion;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription);
+
+        if (m_subscription != null || m_completion.isDone()) {
+            subscription.cancel();
+            return;
+        }
+
+        m_subscription = subscription;
+        subscription.request(m_window);
+    }
+
+    @Override
+    public void onNext(ByteBuffer data) {
+        m_queue.add(Objects.requireNonNull(data));
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        m_error = Objects.requireNonNull(error);
+        m_done = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        m_done = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (m_pending.getAndIncrement() != 0) {
+            return;
+        }
+
+        try {
+            m_executor.execute(m_drain);
+        } catch (RejectedExecutionException e) {
+            fail(e);
+        }
+    }
+
+    private void drain() {
+        ByteBuffer data;
+        boolean done;
+
+        while (m_completion.isDone() == false) {
+            // Read before polling, as the publisher completes only after
+            // its last buffer has been queued.
+            done = m_done;
+
+            if ((data = m_queue.poll()) == null) {
+                if (done) {
+                    finish();
+                }
+                return;
+            }
+
+            try {
+                if (m_channel.send(data, m_priority) == false) {
+                    throw new ChannelError("Could not write to the channel");
+                }
+            } catch (ChannelError e) {
+                fail(e);
+                return;
+            }
+
+            m_subscription.request(1);
+        }
+
+        m_queue.clear();
+    }
+
+    private void finish() {
+        Throwable error = m_error;
+
+        if (error != null) {
+            m_completion.completeExceptionally(error);
+        } else {
+            m_completion.complete(null);
+        }
+    }
+
+    private void fail(Throwable error) {
+        Flow.Subscription subscription = m_subscription;
+
+        if (m_completion.completeExceptionally(error) &&
+            subscription != null) {
+            subscription.cancel();
+        }
+
+        m_queue.clear();
+    }
+}
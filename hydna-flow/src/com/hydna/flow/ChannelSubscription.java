@@ -0,0 +1,161 @@
+package com.hydna.flow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hydna.Channel;
+import com.hydna.ChannelEndSignal;
+import com.hydna.ChannelError;
+import com.hydna.ChannelEvent;
+import com.hydna.ChannelListener;
+
+/**
+ *  The subscription of a ChannelPublisher. Demand and channel
+ *  notifications schedule a drain on the executor, and at most one drain
+ *  runs at a time, so the subscriber is called serially.
+ */
+class ChannelSubscription implements Flow.Subscription,
+                                     ChannelListener,
+                                     Runnable {
+
+    private final Channel m_channel;
+    private final Flow.Subscriber<? super ChannelEvent> m_subscriber;
+    private final Executor m_executor;
+
+    private final AtomicLong m_requested = new AtomicLong();
+    private final AtomicInteger m_pending = new AtomicInteger();
+
+    private volatile boolean m_cancelled = false;
+    private volatile IllegalArgumentException m_badRequest = null;
+
+    // Only used by the draining thread.
+    private boolean m_terminated = false;
+
+    ChannelSubscription(Channel channel,
+                        Flow.Subscriber<? super ChannelEvent> subscriber,
+                        Executor executor) {
+        m_channel = channel;
+        m_subscriber = subscriber;
+        m_executor = executor;
+    }
+
+    @Override
+    public void request(long n) {
+        long requested;
+
+        if (n <= 0) {
+            m_badRequest = new IllegalArgumentException(
+                "Requested " + n + " events, must be positive");
+        } else {
+            do {
+                requested = m_requested.get();
+
+                if (requested == Long.MAX_VALUE) {
+                    break;
+                }
+            } while (m_requested.compareAndSet(requested,
+                         requested + n < 0 ? Long.MAX_VALUE
+                                           : requested + n) == false);
+        }
+
+        schedule();
+    }
+
+    @Override
+    public void cancel() {
+        if (m_cancelled) {
+            return;
+        }
+
+        m_cancelled = true;
+
+        if (m_channel.getListener() == this) {
+            m_channel.setListener(null);
+        }
+
+        m_channel.setQueueLimit(0);
+    }
+
+    @Override
+    public void eventsAvailable(Channel channel) {
+        schedule();
+    }
+
+    private void schedule() {
+        if (m_pending.getAndIncrement() != 0) {
+            return;
+        }
+
+        try {
+            m_executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            cancel();
+            m_subscriber.onError(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+
+        do {
+            drain();
+            missed = m_pending.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain() {
+        ChannelEvent event;
+
+        while (m_terminated == false && m_cancelled == false) {
+
+            if (m_badRequest != null) {
+                terminate();
+                m_subscriber.onError(m_badRequest);
+                return;
+            }
+
+            // Errors are delivered without demand.
+            if (m_requested.get() == 0 && m_channel.hasError() == false) {
+                return;
+            }
+
+            try {
+                event = m_channel.pollEvent();
+            } catch (ChannelError e) {
+                terminate();
+                m_subscriber.onError(e);
+                return;
+            }
+
+            if (event == null) {
+                return;
+            }
+
+            if (m_requested.get() != Long.MAX_VALUE) {
+                m_requested.decrementAndGet();
+            }
+
+            try {
+                m_subscriber.onNext(event);
+            } catch (RuntimeException e) {
+                terminate();
+                throw e;
+            }
+
+            if (event instanceof ChannelEndSignal) {
+                terminate();
+                m_subscriber.onComplete();
+                return;
+            }
+        }
+    }
+
+    private void terminate() {
+        m_terminated = true;
+        cancel();
+    }
+}
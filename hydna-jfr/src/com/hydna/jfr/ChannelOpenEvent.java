@@ -0,0 +1,29 @@
+package com.hydna.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.hydna.ChannelOpen")
+@Label("Hydna Channel Open")
+@Category("Hydna")
+@StackTrace(false)
+class ChannelOpenEvent extends Event {
+
+    @Label("Path")
+    String path;
+
+    @Label("Resolve Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long resolveTime;
+
+    @Label("Open Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long openTime;
+
+    @Label("Error")
+    String error;
+}
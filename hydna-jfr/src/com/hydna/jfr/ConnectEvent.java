@@ -0,0 +1,28 @@
+package com.hydna.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.hydna.Connect")
+@Label("Hydna Connect")
+@Category("Hydna")
+@StackTrace(false)
+class ConnectEvent extends Event {
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Connect Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long connectTime;
+
+    @Label("Error")
+    String error;
+}
@@ -0,0 +1,23 @@
+package com.hydna.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.hydna.ConnectionDestroy")
+@Label("Hydna Connection Destroy")
+@Category("Hydna")
+@StackTrace(false)
+class ConnectionDestroyEvent extends Event {
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Cause")
+    String cause;
+}
@@ -0,0 +1,28 @@
+package com.hydna.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.DataAmount;
+
+@Name("com.hydna.FrameBatch")
+@Label("Hydna Inbound Frame Batch")
+@Category("Hydna")
+@StackTrace(false)
+class FrameBatchEvent extends Event {
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Frames")
+    int frames;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+}
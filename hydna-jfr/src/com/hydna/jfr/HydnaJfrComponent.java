@@ -0,0 +1,23 @@
+package com.hydna.jfr;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
+
+/**
+ *  Installs the JfrProbe while this bundle is active.
+ */
+@Component(immediate = true)
+public class HydnaJfrComponent {
+
+	@Activate
+	public void activate() {
+		JfrProbe.install();
+	}
+
+	@Deactivate
+	public void deactivate() {
+		JfrProbe.uninstall();
+	}
+
+}
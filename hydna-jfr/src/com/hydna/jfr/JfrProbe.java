@@ -0,0 +1,154 @@
+package com.hydna.jfr;
+
+import java.util.Map;
+
+import jdk.jfr.FlightRecorder;
+
+import com.hydna.ConnectionMetrics;
+import com.hydna.ConnectionMetricsMXBean;
+import com.hydna.HydnaProbe;
+import com.hydna.HydnaProbes;
+
+/**
+ *  A HydnaProbe that emits Java Flight Recorder events. Events that are
+ *  not enabled in the running recording cost one isEnabled() check.
+ *
+ *  Writes are only reported as a WriteStallEvent if they fail or take
+ *  longer than the stall threshold, 1 ms by default.
+ */
+public class JfrProbe implements HydnaProbe {
+
+    private static final Runnable QUEUE_DEPTH_HOOK = new Runnable() {
+        @Override
+        public void run() {
+            emitQueueDepths();
+        }
+    };
+
+    private volatile long m_stallThresholdNanos = 1000000;
+
+    /**
+     *  Install a JfrProbe and register the periodic queue depth event.
+     *
+     *  @return The installed probe.
+     */
+    public static synchronized JfrProbe install() {
+        JfrProbe probe = new JfrProbe();
+        FlightRecorder.addPeriodicEvent(QueueDepthEvent.class,
+                                        QUEUE_DEPTH_HOOK);
+        HydnaProbes.setProbe(probe);
+        return probe;
+    }
+
+    /**
+     *  Remove the installed probe and the periodic queue depth event.
+     */
+    public static synchronized void uninstall() {
+        if (HydnaProbes.getProbe() instanceof JfrProbe) {
+            HydnaProbes.setProbe(null);
+        }
+        FlightRecorder.removePeriodicEvent(QUEUE_DEPTH_HOOK);
+    }
+
+    /**
+     *  Set the minimum write time reported as a write stall.
+     *
+     *  @param nanos The threshold in nanoseconds.
+     */
+    public void setStallThreshold(long nanos) {
+        m_stallThresholdNanos = nanos;
+    }
+
+    @Override
+    public void connected(String host,
+                          int port,
+                          long durationNanos,
+                          String error) {
+        ConnectEvent event = new ConnectEvent();
+        if (event.isEnabled()) {
+            event.host = host;
+            event.port = port;
+            event.connectTime = durationNanos;
+            event.error = error;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void channelOpened(String path,
+                              long resolveNanos,
+                              long openNanos,
+                              String error) {
+        ChannelOpenEvent event = new ChannelOpenEvent();
+        if (event.isEnabled()) {
+            event.path = path;
+            event.resolveTime = resolveNanos;
+            event.openTime = openNanos;
+            event.error = error;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void framesReceived(String host, int port, int frames, int bytes) {
+        FrameBatchEvent event = new FrameBatchEvent();
+        if (event.isEnabled()) {
+            event.host = host;
+            event.port = port;
+            event.frames = frames;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void frameWritten(String host,
+                             int port,
+                             int op,
+                             int bytes,
+                             long durationNanos,
+                             boolean success) {
+        WriteStallEvent event;
+
+        if (success && durationNanos < m_stallThresholdNanos) {
+            return;
+        }
+
+        event = new WriteStallEvent();
+        if (event.isEnabled()) {
+            event.host = host;
+            event.port = port;
+            event.opcode = op;
+            event.bytes = bytes;
+            event.writeTime = durationNanos;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void connectionDestroyed(String host, int port, String cause) {
+        ConnectionDestroyEvent event = new ConnectionDestroyEvent();
+        if (event.isEnabled()) {
+            event.host = host;
+            event.port = port;
+            event.cause = cause;
+            event.commit();
+        }
+    }
+
+    private static void emitQueueDepths() {
+        for (ConnectionMetricsMXBean metrics :
+                 ConnectionMetrics.getRegistry().getConnectionMetrics()) {
+            for (Map.Entry<String, Integer> entry :
+                     metrics.getQueueDepths().entrySet()) {
+                QueueDepthEvent event = new QueueDepthEvent();
+                event.host = metrics.getHost();
+                event.port = metrics.getPort();
+                event.path = entry.getKey();
+                event.depth = entry.getValue();
+                event.commit();
+            }
+        }
+    }
+}
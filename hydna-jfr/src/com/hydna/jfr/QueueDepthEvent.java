@@ -0,0 +1,28 @@
+package com.hydna.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Period;
+
+@Name("com.hydna.QueueDepth")
+@Label("Hydna Channel Queue Depth")
+@Category("Hydna")
+@StackTrace(false)
+@Period("1 s")
+class QueueDepthEvent extends Event {
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Path")
+    String path;
+
+    @Label("Depth")
+    int depth;
+}
@@ -0,0 +1,36 @@
+package com.hydna.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Timespan;
+
+@Name("com.hydna.WriteStall")
+@Label("Hydna Write Stall")
+@Category("Hydna")
+@StackTrace(true)
+class WriteStallEvent extends Event {
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Opcode")
+    int opcode;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+    @Label("Write Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long writeTime;
+
+    @Label("Success")
+    boolean success;
+}
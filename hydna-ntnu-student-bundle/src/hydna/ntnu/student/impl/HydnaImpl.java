@@ -11,6 +11,7 @@ import com.hydna.ChannelError;
 import com.hydna.ChannelEvent;
 import com.hydna.ChannelMode;
 import com.hydna.ChannelSignal;
+import com.hydna.HydnaThreads;
 
 import aQute.bnd.annotation.component.Component;
 import hydna.ntnu.student.api.HydnaApi;
@@ -78,7 +79,7 @@ public class HydnaImpl implements HydnaApi{
 				
 			}
 		};
-		thread = new Thread(runnable);
+		thread = HydnaThreads.newThread(runnable);
 		thread.start();
 	}
 
@@ -0,0 +1,24 @@
+package hydna.ntnu.student.impl;
+
+import java.util.List;
+
+import com.hydna.ConnectionMetrics;
+import com.hydna.ConnectionMetricsMXBean;
+import com.hydna.HydnaMetrics;
+
+import aQute.bnd.annotation.component.Component;
+
+@Component(provide = HydnaMetrics.class)
+public class HydnaMetricsImpl implements HydnaMetrics {
+
+	@Override
+	public List<ConnectionMetricsMXBean> getConnectionMetrics() {
+		return ConnectionMetrics.getRegistry().getConnectionMetrics();
+	}
+
+	@Override
+	public ConnectionMetricsMXBean getConnectionMetrics(String host, int port) {
+		return ConnectionMetrics.getRegistry().getConnectionMetrics(host, port);
+	}
+
+}
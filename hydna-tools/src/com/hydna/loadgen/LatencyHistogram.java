@@ -0,0 +1,103 @@
+package com.hydna.loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  A log-linear histogram of positive long values, such as latencies in
+ *  nanoseconds. Values are kept with a relative error below 0.1 %.
+ *  Recording is lock-free and may be done from any number of threads.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    private static final int SIZE = (64 - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(SIZE);
+    private final AtomicLong m_total = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     *  Record a value. Negative values are recorded as 0.
+     *
+     *  @param value The value.
+     */
+    void record(long value) {
+        long max;
+
+        if (value < 0) {
+            value = 0;
+        }
+
+        m_counts.incrementAndGet(indexOf(value));
+        m_total.incrementAndGet();
+
+        while ((max = m_max.get()) < value) {
+            if (m_max.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    long getTotalCount() {
+        return m_total.get();
+    }
+
+    long getMax() {
+        return m_max.get();
+    }
+
+    /**
+     *  Returns the value at a percentile.
+     *
+     *  @param percentile The percentile, between 0 and 100.
+     *  @return The highest value equivalent to the value at the percentile.
+     */
+    long getValueAtPercentile(double percentile) {
+        long total = m_total.get();
+        long target;
+        long count = 0;
+
+        if (total == 0) {
+            return 0;
+        }
+
+        target = Math.max(1, (long)Math.ceil(percentile / 100.0 * total));
+
+        for (int i = 0; i < SIZE; i++) {
+            count += m_counts.get(i);
+            if (count >= target) {
+                return Math.min(highestValueAt(i), m_max.get());
+            }
+        }
+
+        return m_max.get();
+    }
+
+    private static int indexOf(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift;
+
+        if (msb < SUB_BUCKET_BITS) {
+            return (int)value;
+        }
+
+        shift = msb - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int)(value >>> shift);
+    }
+
+    private static long highestValueAt(int index) {
+        int shift;
+        long sub;
+
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        shift = index / SUB_BUCKET_HALF - 1;
+        sub = index - (long)shift * SUB_BUCKET_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,257 @@
+package com.hydna.loadgen;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hydna.Channel;
+import com.hydna.ChannelData;
+import com.hydna.ChannelError;
+import com.hydna.ChannelEvent;
+import com.hydna.ChannelMode;
+import com.hydna.HydnaThreads;
+
+/**
+ *  A command line load generator built on the public Channel API.
+ *
+ *  Opens a number of channels, spread over one or more hosts, and sends
+ *  messages at a fixed rate per channel. Each message carries the time
+ *  it was scheduled to be sent, so the reported latency of the echoed
+ *  message is corrected for coordinated omission: a stalled sender
+ *  shows up as latency instead of as fewer samples.
+ *
+ *  The library shares one connection per host and port, so use several
+ *  -url arguments (for example "localhost" and "127.0.0.1") to spread
+ *  channels over several connections.
+ */
+public class LoadGenerator {
+
+    // Scheduled send time, actual send time.
+    private static final int TIMESTAMP_SIZE = 16;
+
+    private final List<String> m_urls = new ArrayList<String>();
+    private int m_channelCount = 1;
+    private double m_rate = 100;
+    private int m_payloadSize = 64;
+    private int m_priority = 0;
+    private long m_duration = 10;
+    private String m_pathPrefix = "loadgen";
+
+    private final LatencyHistogram m_latency = new LatencyHistogram();
+    private final LatencyHistogram m_serviceTime = new LatencyHistogram();
+    private final AtomicLong m_sent = new AtomicLong();
+    private final AtomicLong m_received = new AtomicLong();
+    private final AtomicLong m_sendFailures = new AtomicLong();
+
+    private volatile boolean m_running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (arg.equals("-url")) {
+                generator.m_urls.add(args[++i]);
+            } else if (arg.equals("-channels")) {
+                generator.m_channelCount = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-rate")) {
+                generator.m_rate = Double.parseDouble(args[++i]);
+            } else if (arg.equals("-size")) {
+                generator.m_payloadSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-priority")) {
+                generator.m_priority = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-duration")) {
+                generator.m_duration = Long.parseLong(args[++i]);
+            } else if (arg.equals("-path")) {
+                generator.m_pathPrefix = args[++i];
+            } else {
+                usage("Unknown argument: " + arg);
+            }
+        }
+
+        if (generator.m_urls.isEmpty()) {
+            generator.m_urls.add("localhost:7010");
+        }
+
+        if (generator.m_payloadSize < TIMESTAMP_SIZE) {
+            usage("Payload size must be at least " + TIMESTAMP_SIZE);
+        }
+
+        generator.run();
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: LoadGenerator [-url host:port]... " +
+                           "[-channels n] [-rate msgs/s per channel] " +
+                           "[-size bytes] [-priority 0-7] " +
+                           "[-duration seconds] [-path prefix]");
+        System.exit(1);
+    }
+
+    private void run() throws Exception {
+        Channel[] channels = new Channel[m_channelCount];
+        Thread[] consumers = new Thread[m_channelCount];
+
+        // Channels on the same connection can not be opened concurrently.
+        for (int i = 0; i < m_channelCount; i++) {
+            String url = m_urls.get(i % m_urls.size()) + "/" +
+                         m_pathPrefix + "-" + i;
+
+            channels[i] = new Channel();
+            channels[i].connect(url, ChannelMode.READWRITE);
+        }
+
+        System.out.printf("Opened %d channels on %d host(s)%n",
+                          m_channelCount, m_urls.size());
+
+        for (int i = 0; i < m_channelCount; i++) {
+            final Channel channel = channels[i];
+            consumers[i] = HydnaThreads.newThread(new Runnable() {
+                public void run() {
+                    consume(channel);
+                }
+            });
+            consumers[i].start();
+        }
+
+        send(channels);
+
+        // Give in-flight messages a chance to arrive.
+        Thread.sleep(1000);
+        m_running = false;
+
+        for (Channel channel : channels) {
+            try {
+                channel.close();
+            } catch (ChannelError e) {
+            }
+        }
+
+        for (Thread consumer : consumers) {
+            consumer.join(1000);
+        }
+
+        report();
+    }
+
+    private void send(Channel[] channels) {
+        long interval = (long)(TimeUnit.SECONDS.toNanos(1) /
+                               (m_rate * channels.length));
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(m_duration);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastReceived = 0;
+        long n = 0;
+
+        for (;;) {
+            long scheduled = start + n * interval;
+            long now = System.nanoTime();
+            ByteBuffer payload;
+
+            if (scheduled >= end) {
+                break;
+            }
+
+            if (now >= nextReport) {
+                long sent = m_sent.get();
+                long received = m_received.get();
+                System.out.printf("sent %8d/s  received %8d/s%n",
+                                  sent - lastSent, received - lastReceived);
+                lastSent = sent;
+                lastReceived = received;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+
+            if (now < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+                continue;
+            }
+
+            payload = ByteBuffer.allocate(m_payloadSize);
+            payload.putLong(scheduled);
+            payload.putLong(System.nanoTime());
+            payload.rewind();
+
+            try {
+                if (channels[(int)(n % channels.length)].send(payload,
+                                                            m_priority)) {
+                    m_sent.incrementAndGet();
+                } else {
+                    m_sendFailures.incrementAndGet();
+                }
+            } catch (ChannelError e) {
+                m_sendFailures.incrementAndGet();
+            }
+
+            n++;
+        }
+    }
+
+    private void consume(Channel channel) {
+        while (m_running) {
+            ChannelEvent event;
+            ByteBuffer data;
+            long now;
+
+            try {
+                event = channel.nextEvent();
+            } catch (ChannelError e) {
+                return;
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (event instanceof ChannelData == false) {
+                continue;
+            }
+
+            now = System.nanoTime();
+            data = event.getData();
+
+            if (data == null || data.remaining() < TIMESTAMP_SIZE) {
+                continue;
+            }
+
+            m_latency.record(now - data.getLong(data.position()));
+            m_serviceTime.record(now - data.getLong(data.position() + 8));
+            m_received.incrementAndGet();
+        }
+    }
+
+    private void report() {
+        System.out.println();
+        System.out.printf("Channels:      %d%n", m_channelCount);
+        System.out.printf("Payload:       %d bytes, priority %d%n",
+                          m_payloadSize, m_priority);
+        System.out.printf("Sent:          %d (%d failures)%n",
+                          m_sent.get(), m_sendFailures.get());
+        System.out.printf("Received:      %d%n", m_received.get());
+        System.out.printf("Throughput:    %.1f msgs/s%n",
+                          m_received.get() / (double)m_duration);
+        System.out.println();
+        printLatency("Latency (corrected for coordinated omission)",
+                     m_latency);
+        printLatency("Service time (uncorrected)", m_serviceTime);
+    }
+
+    private static void printLatency(String title, LatencyHistogram histogram) {
+        System.out.println(title);
+        System.out.printf("  p50:    %10.3f ms%n",
+                          millis(histogram.getValueAtPercentile(50)));
+        System.out.printf("  p99:    %10.3f ms%n",
+                          millis(histogram.getValueAtPercentile(99)));
+        System.out.printf("  p99.9:  %10.3f ms%n",
+                          millis(histogram.getValueAtPercentile(99.9)));
+        System.out.printf("  max:    %10.3f ms%n", millis(histogram.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
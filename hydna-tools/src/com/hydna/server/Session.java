@@ -0,0 +1,251 @@
+package com.hydna.server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  One client connection to the TestServer. A reader thread decodes
+ *  frames from the client, a writer thread sends queued frames while
+ *  applying the latency and bandwidth settings of the server.
+ */
+class Session {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final class Outbound {
+        final byte[] bytes;
+        final long due;
+
+        Outbound(byte[] bytes, long due) {
+            this.bytes = bytes;
+            this.due = due;
+        }
+    }
+
+    private static final Outbound CLOSE = new Outbound(null, 0);
+
+    private final TestServer m_server;
+    private final Socket m_socket;
+    private final BlockingQueue<Outbound> m_outbound;
+    private final Set<Integer> m_openChannels;
+
+    private volatile boolean m_closed = false;
+    private long m_framesIn = 0;
+
+    Session(TestServer server, Socket socket) {
+        m_server = server;
+        m_socket = socket;
+        m_outbound = new LinkedBlockingQueue<Outbound>();
+        m_openChannels = Collections.newSetFromMap(
+            new ConcurrentHashMap<Integer, Boolean>());
+    }
+
+    /**
+     *  Start the reader and writer threads of this session.
+     */
+    void start() {
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readLoop();
+            }
+        }, "hydna-server-reader");
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "hydna-server-writer");
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    boolean isOpen(int channelPtr) {
+        return m_openChannels.contains(channelPtr);
+    }
+
+    /**
+     *  Close the socket immediately, without sending any end signals.
+     */
+    synchronized void abort() {
+        if (m_closed) {
+            return;
+        }
+
+        m_closed = true;
+
+        try {
+            m_socket.setSoLinger(true, 0);
+        } catch (IOException e) {
+        }
+
+        try {
+            m_socket.close();
+        } catch (IOException e) {
+        }
+
+        m_outbound.clear();
+        m_outbound.add(CLOSE);
+        m_server.sessionClosed(this);
+    }
+
+    /**
+     *  Queue a frame to be sent to the client.
+     */
+    void send(int channelPtr, int ctype, int op, int flag, byte[] payload) {
+        int length = TestServer.HEADER_SIZE +
+                     (payload == null ? 0 : payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(length + 2);
+
+        frame.putShort((short)length);
+        frame.putInt(channelPtr);
+        frame.put((byte)((ctype << 6) | (op << 3) | flag));
+
+        if (payload != null) {
+            frame.put(payload);
+        }
+
+        if (m_closed == false) {
+            m_outbound.add(new Outbound(frame.array(),
+                                        System.nanoTime() +
+                                        m_server.getLatencyNanos()));
+        }
+    }
+
+    private void readLoop() {
+        try {
+            DataInputStream in = new DataInputStream(m_socket.getInputStream());
+
+            if (handshake(in) == false) {
+                abort();
+                return;
+            }
+
+            for (;;) {
+                int length = in.readUnsignedShort();
+                int channelPtr;
+                int of;
+                byte[] payload;
+
+                if (length < TestServer.HEADER_SIZE) {
+                    abort();
+                    return;
+                }
+
+                channelPtr = in.readInt();
+                of = in.readUnsignedByte();
+                payload = new byte[length - TestServer.HEADER_SIZE];
+                in.readFully(payload);
+
+                m_framesIn++;
+
+                if (m_server.shouldDisconnect(m_framesIn)) {
+                    abort();
+                    return;
+                }
+
+                m_server.handleFrame(this,
+                                     channelPtr,
+                                     (of >> 6) & 0x1,
+                                     (of >> 3) & 0x7,
+                                     of & 0x7,
+                                     payload);
+            }
+        } catch (EOFException e) {
+        } catch (IOException e) {
+        }
+
+        abort();
+    }
+
+    private boolean handshake(InputStream in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        int c;
+        String text;
+        String response;
+
+        while (request.indexOf("\r\n\r\n") == -1) {
+            if ((c = in.read()) == -1) {
+                return false;
+            }
+            request.append((char)c);
+        }
+
+        text = request.toString().toLowerCase();
+
+        if (text.startsWith("get ") == false ||
+            text.indexOf("upgrade: winksock/1") == -1) {
+            response = "HTTP/1.1 400 Bad Request\r\n\r\n";
+            m_socket.getOutputStream().write(response.getBytes(ASCII));
+            return false;
+        }
+
+        response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                   "Connection: upgrade\r\n" +
+                   "Upgrade: winksock/1\r\n" +
+                   "\r\n";
+
+        m_socket.getOutputStream().write(response.getBytes(ASCII));
+        m_socket.getOutputStream().flush();
+
+        return true;
+    }
+
+    private void writeLoop() {
+        try {
+            OutputStream out = m_socket.getOutputStream();
+
+            for (;;) {
+                Outbound frame = m_outbound.take();
+                long wait;
+                long bandwidth;
+
+                if (frame == CLOSE) {
+                    return;
+                }
+
+                wait = frame.due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                out.write(frame.bytes);
+
+                bandwidth = m_server.getBandwidth();
+                if (bandwidth > 0) {
+                    TimeUnit.NANOSECONDS.sleep(
+                        frame.bytes.length * 1000000000L / bandwidth);
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    void opened(int channelPtr) {
+        m_openChannels.add(channelPtr);
+    }
+
+    void closed(int channelPtr) {
+        m_openChannels.remove(channelPtr);
+    }
+
+    Set<Integer> getOpenChannels() {
+        return m_openChannels;
+    }
+}
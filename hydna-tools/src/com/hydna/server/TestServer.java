@@ -0,0 +1,456 @@
+package com.hydna.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ *  A local stand-in for a Hydna server, for load, latency and
+ *  resilience testing of the library on a single machine.
+ *
+ *  The server accepts the winksock/1 HTTP upgrade and handles RESOLVE,
+ *  OPEN, DATA, SIGNAL and KEEPALIVE frames. Data and signals are echoed
+ *  back to the sender and fanned out to every other session that has
+ *  the channel open. Open requests can be denied by path, and outbound
+ *  traffic can be delayed, throttled or abruptly cut.
+ */
+public class TestServer {
+
+    static final int HEADER_SIZE = 0x05;
+
+    // Opcodes
+    static final int KEEPALIVE = 0x00;
+    static final int OPEN = 0x01;
+    static final int DATA = 0x02;
+    static final int SIGNAL = 0x03;
+    static final int RESOLVE = 0x04;
+
+    // Flags
+    static final int OPEN_ALLOW = 0x0;
+    static final int OPEN_DENY = 0x7;
+    static final int SIG_EMIT = 0x0;
+    static final int SIG_END = 0x1;
+
+    static final int UTF8 = 0x00;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+    private static final class DenyRule {
+        final Pattern pattern;
+        final String message;
+
+        DenyRule(Pattern pattern, String message) {
+            this.pattern = pattern;
+            this.message = message;
+        }
+    }
+
+    private final List<Session> m_sessions;
+    private final List<DenyRule> m_denyRules;
+    private final Map<String, Integer> m_pathToPtr;
+    private final Map<Integer, String> m_ptrToPath;
+    private final AtomicInteger m_nextPtr;
+
+    private ServerSocket m_serverSocket;
+
+    private volatile boolean m_echo = true;
+    private volatile boolean m_fanOut = true;
+    private volatile long m_latencyNanos = 0;
+    private volatile long m_bandwidth = 0;
+    private volatile long m_disconnectAfterFrames = 0;
+    private volatile String m_openMessage = null;
+
+    public TestServer() {
+        m_sessions = new CopyOnWriteArrayList<Session>();
+        m_denyRules = new CopyOnWriteArrayList<DenyRule>();
+        m_pathToPtr = new ConcurrentHashMap<String, Integer>();
+        m_ptrToPath = new ConcurrentHashMap<Integer, String>();
+        m_nextPtr = new AtomicInteger(1);
+    }
+
+    /**
+     *  Start listening on the loopback interface. The library parses
+     *  ports as a signed short, so clients can only reach ports below
+     *  32768.
+     *
+     *  @param port The port, or 0 for any free port.
+     *  @return The port the server listens on.
+     */
+    public synchronized int start(int port) throws IOException {
+        if (m_serverSocket != null) {
+            throw new IllegalStateException("Already started");
+        }
+
+        m_serverSocket = new ServerSocket();
+        m_serverSocket.setReuseAddress(true);
+        m_serverSocket.bind(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), port));
+
+        final ServerSocket serverSocket = m_serverSocket;
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop(serverSocket);
+            }
+        }, "hydna-server-acceptor");
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     *  Returns the port the server listens on.
+     *
+     *  @return The port, or -1 if not started.
+     */
+    public synchronized int getPort() {
+        return m_serverSocket == null ? -1 : m_serverSocket.getLocalPort();
+    }
+
+    /**
+     *  Stop listening and abort all sessions.
+     */
+    public synchronized void stop() {
+        if (m_serverSocket != null) {
+            try {
+                m_serverSocket.close();
+            } catch (IOException e) {
+            }
+            m_serverSocket = null;
+        }
+
+        disconnectAll();
+    }
+
+    /**
+     *  Echo data and signals back to the sender. Enabled by default.
+     */
+    public void setEcho(boolean echo) {
+        m_echo = echo;
+    }
+
+    /**
+     *  Deliver data and signals to other sessions that have the channel
+     *  open. Enabled by default.
+     */
+    public void setFanOut(boolean fanOut) {
+        m_fanOut = fanOut;
+    }
+
+    /**
+     *  Delay every outbound frame.
+     *
+     *  @param latency The delay in milliseconds, 0 to disable.
+     */
+    public void setLatency(long latency) {
+        m_latencyNanos = TimeUnit.MILLISECONDS.toNanos(latency);
+    }
+
+    /**
+     *  Limit the outbound bandwidth of each session.
+     *
+     *  @param bandwidth Bytes per second, 0 for no limit.
+     */
+    public void setBandwidth(long bandwidth) {
+        m_bandwidth = bandwidth;
+    }
+
+    /**
+     *  Send a message with every allowed open request.
+     *
+     *  @param message The message, or null to send none.
+     */
+    public void setOpenMessage(String message) {
+        m_openMessage = message;
+    }
+
+    /**
+     *  Abruptly disconnect a session after it has sent a number of frames.
+     *
+     *  @param frames The number of frames, 0 to disable.
+     */
+    public void setDisconnectAfterFrames(long frames) {
+        m_disconnectAfterFrames = frames;
+    }
+
+    /**
+     *  Deny open requests for paths matching a regular expression.
+     *
+     *  @param pathExpr The regular expression, matched against the path.
+     *  @param message The message sent with the deny.
+     */
+    public void addDenyRule(String pathExpr, String message) {
+        m_denyRules.add(new DenyRule(Pattern.compile(pathExpr), message));
+    }
+
+    /**
+     *  Remove all deny rules.
+     */
+    public void clearDenyRules() {
+        m_denyRules.clear();
+    }
+
+    /**
+     *  Returns the number of connected sessions.
+     *
+     *  @return The number of sessions.
+     */
+    public int getSessionCount() {
+        return m_sessions.size();
+    }
+
+    /**
+     *  Abruptly close every session, without sending end signals.
+     */
+    public void disconnectAll() {
+        for (Session session : m_sessions) {
+            session.abort();
+        }
+    }
+
+    /**
+     *  Send a UTF8 data message on channel pointer 0, to every open
+     *  channel of every session.
+     *
+     *  @param message The message.
+     */
+    public void broadcast(String message) {
+        byte[] payload = message.getBytes(UTF8_CHARSET);
+
+        for (Session session : m_sessions) {
+            if (session.getOpenChannels().isEmpty() == false) {
+                session.send(0, UTF8, DATA, 0, payload);
+            }
+        }
+    }
+
+    /**
+     *  Send a UTF8 emit signal on channel pointer 0, to every open
+     *  channel of every session.
+     *
+     *  @param message The message.
+     */
+    public void broadcastSignal(String message) {
+        byte[] payload = message.getBytes(UTF8_CHARSET);
+
+        for (Session session : m_sessions) {
+            if (session.getOpenChannels().isEmpty() == false) {
+                session.send(0, UTF8, SIGNAL, SIG_EMIT, payload);
+            }
+        }
+    }
+
+    /**
+     *  Send an end signal to every session that has the path open.
+     *
+     *  @param path The channel path.
+     *  @param message The end message.
+     */
+    public void end(String path, String message) {
+        Integer channelPtr = m_pathToPtr.get(path);
+        byte[] payload = message.getBytes(UTF8_CHARSET);
+
+        if (channelPtr == null) {
+            return;
+        }
+
+        for (Session session : m_sessions) {
+            if (session.isOpen(channelPtr)) {
+                session.closed(channelPtr);
+                session.send(channelPtr, UTF8, SIGNAL, SIG_END, payload);
+            }
+        }
+    }
+
+    long getLatencyNanos() {
+        return m_latencyNanos;
+    }
+
+    long getBandwidth() {
+        return m_bandwidth;
+    }
+
+    boolean shouldDisconnect(long framesIn) {
+        long limit = m_disconnectAfterFrames;
+        return limit > 0 && framesIn >= limit;
+    }
+
+    void sessionClosed(Session session) {
+        m_sessions.remove(session);
+    }
+
+    /**
+     *  Handle a frame received from a session.
+     */
+    void handleFrame(Session session,
+                     int channelPtr,
+                     int ctype,
+                     int op,
+                     int flag,
+                     byte[] payload) {
+        switch (op) {
+
+            case KEEPALIVE:
+            session.send(0, UTF8, KEEPALIVE, 0, null);
+            break;
+
+            case RESOLVE:
+            handleResolve(session, payload);
+            break;
+
+            case OPEN:
+            handleOpen(session, channelPtr);
+            break;
+
+            case DATA:
+            if (session.isOpen(channelPtr)) {
+                deliver(session, channelPtr, ctype, DATA, flag, payload);
+            }
+            break;
+
+            case SIGNAL:
+            if (session.isOpen(channelPtr) == false) {
+                break;
+            }
+            if (flag == SIG_END) {
+                session.closed(channelPtr);
+                session.send(channelPtr, ctype, SIGNAL, SIG_END, payload);
+            } else {
+                deliver(session, channelPtr, ctype, SIGNAL, flag, payload);
+            }
+            break;
+        }
+    }
+
+    private void handleResolve(Session session, byte[] payload) {
+        String path = new String(payload, ASCII);
+        Integer channelPtr;
+
+        synchronized (m_pathToPtr) {
+            channelPtr = m_pathToPtr.get(path);
+            if (channelPtr == null) {
+                channelPtr = m_nextPtr.getAndIncrement();
+                m_pathToPtr.put(path, channelPtr);
+                m_ptrToPath.put(channelPtr, path);
+            }
+        }
+
+        session.send(channelPtr, UTF8, RESOLVE, OPEN_ALLOW, payload);
+    }
+
+    private void handleOpen(Session session, int channelPtr) {
+        String path = m_ptrToPath.get(channelPtr);
+        String message = m_openMessage;
+
+        if (path == null) {
+            session.send(channelPtr, UTF8, OPEN, OPEN_DENY,
+                         "Unknown channel".getBytes(UTF8_CHARSET));
+            return;
+        }
+
+        for (DenyRule rule : m_denyRules) {
+            if (rule.pattern.matcher(path).matches()) {
+                session.send(channelPtr, UTF8, OPEN, OPEN_DENY,
+                             rule.message.getBytes(UTF8_CHARSET));
+                return;
+            }
+        }
+
+        session.opened(channelPtr);
+        session.send(channelPtr, UTF8, OPEN, OPEN_ALLOW,
+                     message != null ? message.getBytes(UTF8_CHARSET) : null);
+    }
+
+    private void deliver(Session sender,
+                         int channelPtr,
+                         int ctype,
+                         int op,
+                         int flag,
+                         byte[] payload) {
+        boolean echo = m_echo;
+        boolean fanOut = m_fanOut;
+
+        for (Session session : m_sessions) {
+            if (session == sender ? echo == false : fanOut == false) {
+                continue;
+            }
+            if (session.isOpen(channelPtr)) {
+                session.send(channelPtr, ctype, op, flag, payload);
+            }
+        }
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        for (;;) {
+            Socket socket;
+            Session session;
+
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+
+            session = new Session(this, socket);
+            m_sessions.add(session);
+            session.start();
+        }
+    }
+
+    /**
+     *  Run the server from the command line.
+     *
+     *  Usage: TestServer [-port n] [-latency ms] [-bandwidth bytes/s]
+     *                    [-disconnect-after frames] [-deny regex]
+     *                    [-no-echo] [-no-fanout]
+     */
+    public static void main(String[] args) throws Exception {
+        TestServer server = new TestServer();
+        int port = 7010;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (arg.equals("-port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-latency")) {
+                server.setLatency(Long.parseLong(args[++i]));
+            } else if (arg.equals("-bandwidth")) {
+                server.setBandwidth(Long.parseLong(args[++i]));
+            } else if (arg.equals("-disconnect-after")) {
+                server.setDisconnectAfterFrames(Long.parseLong(args[++i]));
+            } else if (arg.equals("-deny")) {
+                server.addDenyRule(args[++i], "Denied by test server");
+            } else if (arg.equals("-no-echo")) {
+                server.setEcho(false);
+            } else if (arg.equals("-no-fanout")) {
+                server.setFanOut(false);
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+
+        port = server.start(port);
+
+        System.out.println("Hydna test server listening on localhost:" + port);
+
+        for (;;) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
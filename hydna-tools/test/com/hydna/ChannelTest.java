@@ -0,0 +1,156 @@
+package com.hydna;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.hydna.server.TestServer;
+
+/**
+ *  Tests Channel against a local TestServer.
+ */
+public class ChannelTest extends TestCase {
+
+    // The library parses ports as a signed short.
+    private static final int PORT = 7106;
+
+    // Shared by all tests. A stopped server can hold on to its port for
+    // a moment, so it is not restarted for every test.
+    private static TestServer m_server;
+
+    /**
+     *  Records whether end signals are written while the monitor of a
+     *  channel is held.
+     */
+    private static final class LockProbe implements HydnaProbe {
+        final AtomicInteger signals = new AtomicInteger();
+        final AtomicInteger locked = new AtomicInteger();
+        volatile Channel channel;
+
+        public void connected(String host, int port, long durationNanos,
+                              String error) {
+        }
+
+        public void channelOpened(String path, long resolveNanos,
+                                  long openNanos, String error) {
+        }
+
+        public void framesReceived(String host, int port, int frames,
+                                   int bytes) {
+        }
+
+        public void frameWritten(String host, int port, int op, int bytes,
+                                 long durationNanos, boolean success) {
+            if (op == Frame.SIGNAL) {
+                signals.incrementAndGet();
+
+                if (Thread.holdsLock(channel)) {
+                    locked.incrementAndGet();
+                }
+            }
+        }
+
+        public void connectionDestroyed(String host, int port, String cause) {
+        }
+    }
+
+    protected void setUp() throws Exception {
+        if (m_server == null) {
+            m_server = new TestServer();
+            m_server.start(PORT);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        HydnaProbes.setProbe(null);
+        m_server.disconnectAll();
+    }
+
+    public void testEndSignalIsAcknowledgedOutsideMonitor() throws Exception {
+        LockProbe probe = new LockProbe();
+        Channel channel = new Channel();
+        ChannelEvent event;
+
+        channel.connect("localhost:" + PORT + "/end", ChannelMode.READWRITE);
+
+        probe.channel = channel;
+        HydnaProbes.setProbe(probe);
+
+        m_server.end("/end", "bye");
+
+        event = awaitEvent(channel);
+
+        assertTrue(event instanceof ChannelEndSignal);
+        assertEquals("bye", event.getString());
+        assertEquals(1, probe.signals.get());
+        assertEquals(0, probe.locked.get());
+        assertFalse(channel.isConnected());
+    }
+
+    public void testCloseHandsOverToSharer() throws Exception {
+        Channel first = new Channel();
+        Channel second = new Channel();
+
+        first.connect("localhost:" + PORT + "/share", ChannelMode.READWRITE);
+        second.connect("localhost:" + PORT + "/share", ChannelMode.READWRITE);
+
+        first.close();
+
+        assertFalse(first.isConnected());
+        assertTrue(second.isConnected());
+
+        second.send("after");
+        assertEquals("after", awaitEvent(second).getString());
+
+        second.close();
+    }
+
+    public void testCloseWithoutServerChannelDoesNotSpin() throws Exception {
+        final Channel first = new Channel();
+        Channel second = new Channel();
+        long closeTimeout = HydnaTimeouts.getCloseTimeout();
+        Connection connection;
+        Thread closer;
+
+        first.connect("localhost:" + PORT + "/spin", ChannelMode.READWRITE);
+        second.connect("localhost:" + PORT + "/spin", ChannelMode.READWRITE);
+
+        // As while the connection is being destroyed, the channel still
+        // has a sharer but no longer owns the server channel.
+        connection = Connection.getConnection("localhost", (short)PORT);
+        connection.registerChannel(first.getChannelPtr(), new Channel());
+
+        HydnaTimeouts.setCloseTimeout(300);
+
+        try {
+            closer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        first.close();
+                    } catch (Exception e) {
+                    }
+                }
+            });
+            closer.start();
+            closer.join(5000);
+
+            assertFalse("close did not return", closer.isAlive());
+        } finally {
+            HydnaTimeouts.setCloseTimeout(closeTimeout);
+        }
+    }
+
+    private static ChannelEvent awaitEvent(Channel channel) throws Exception {
+        ChannelEvent event;
+
+        for (int wait = 0; wait < 50; wait++) {
+            if ((event = channel.pollEvent()) != null) {
+                return event;
+            }
+            Thread.sleep(100);
+        }
+
+        fail("no event");
+        return null;
+    }
+}
@@ -0,0 +1,90 @@
+package com.hydna;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import com.hydna.server.TestServer;
+
+/**
+ *  Tests the life cycle of the connection MBeans against a local
+ *  TestServer.
+ */
+public class ConnectionMetricsTest extends TestCase {
+
+    // The library parses ports as a signed short.
+    private static final int PORT = 7104;
+
+    // Nothing listens here, it only names an idle endpoint.
+    private static final int IDLE_PORT = 7105;
+
+    // Shared by all tests. A stopped server can hold on to its port for
+    // a moment, so it is not restarted for every test.
+    private static TestServer m_server;
+
+    private MBeanServer m_mbeans;
+
+    protected void setUp() throws Exception {
+        if (m_server == null) {
+            m_server = new TestServer();
+            m_server.start(PORT);
+        }
+
+        m_mbeans = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    protected void tearDown() throws Exception {
+        ConnectionMetrics.activate();
+        m_server.disconnectAll();
+    }
+
+    public void testDeactivateKeepsBeansOfLiveConnections() throws Exception {
+        Channel channel = new Channel();
+
+        channel.connect("localhost:" + PORT + "/metrics",
+                        ChannelMode.READWRITE);
+        ConnectionMetrics.forEndpoint("localhost", IDLE_PORT);
+
+        assertTrue(m_mbeans.isRegistered(name(PORT)));
+        assertTrue(m_mbeans.isRegistered(name(IDLE_PORT)));
+
+        ConnectionMetrics.deactivate();
+
+        assertTrue(m_mbeans.isRegistered(name(PORT)));
+        assertFalse(m_mbeans.isRegistered(name(IDLE_PORT)));
+
+        channel.close();
+
+        for (int wait = 0; m_mbeans.isRegistered(name(PORT)); wait++) {
+            assertTrue("bean of closed connection left", wait < 50);
+            Thread.sleep(100);
+        }
+    }
+
+    public void testActiveBundleKeepsBeansAcrossReconnects() throws Exception {
+        Channel channel = new Channel();
+
+        channel.connect("localhost:" + PORT + "/metrics",
+                        ChannelMode.READWRITE);
+        channel.close();
+
+        channel = new Channel();
+        channel.connect("localhost:" + PORT + "/metrics",
+                        ChannelMode.READWRITE);
+
+        assertTrue(m_mbeans.isRegistered(name(PORT)));
+        assertTrue((Long)m_mbeans.getAttribute(name(PORT), "Reconnects") > 0);
+
+        channel.close();
+
+        assertTrue(m_mbeans.isRegistered(name(PORT)));
+    }
+
+    private static ObjectName name(int port) throws Exception {
+        return new ObjectName("com.hydna:type=Connection,name="
+                              + ObjectName.quote("localhost:" + port));
+    }
+}
@@ -0,0 +1,145 @@
+package com.hydna;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import com.hydna.server.TestServer;
+
+/**
+ *  Tests the connection life cycle against a local TestServer.
+ */
+public class ConnectionTest extends TestCase {
+
+    // The library parses ports as a signed short.
+    private static final int PORT = 7101;
+
+    private static final class DestroyProbe implements HydnaProbe {
+        final List<String> destroyed = new CopyOnWriteArrayList<String>();
+
+        public void connected(String host, int port, long durationNanos,
+                              String error) {
+        }
+
+        public void channelOpened(String path, long resolveNanos,
+                                  long openNanos, String error) {
+        }
+
+        public void framesReceived(String host, int port, int frames,
+                                   int bytes) {
+        }
+
+        public void frameWritten(String host, int port, int op, int bytes,
+                                 long durationNanos, boolean success) {
+        }
+
+        public void connectionDestroyed(String host, int port, String cause) {
+            destroyed.add(String.valueOf(cause));
+        }
+    }
+
+    // Shared by all tests. A stopped server can hold on to its port for
+    // a moment, so it is not restarted for every test.
+    private static TestServer m_server;
+
+    private DestroyProbe m_probe;
+
+    protected void setUp() throws Exception {
+        if (m_server == null) {
+            m_server = new TestServer();
+            m_server.start(PORT);
+        }
+
+        m_probe = new DestroyProbe();
+        HydnaProbes.setProbe(m_probe);
+    }
+
+    protected void tearDown() throws Exception {
+        HydnaProbes.setProbe(null);
+        HydnaThreads.setThreadFactory(null);
+        m_server.disconnectAll();
+    }
+
+    public void testCleanCloseDestroysOnce() throws Exception {
+        Channel channel = new Channel();
+
+        channel.connect("localhost:" + PORT + "/destroy", ChannelMode.READWRITE);
+        channel.close();
+
+        // Give the listening thread time to see the closed socket.
+        Thread.sleep(200);
+
+        assertEquals(1, m_probe.destroyed.size());
+        assertEquals("null", m_probe.destroyed.get(0));
+    }
+
+    public void testRemoteDisconnectDestroysOnce() throws Exception {
+        Channel channel = new Channel();
+
+        channel.connect("localhost:" + PORT + "/destroy", ChannelMode.READWRITE);
+        m_server.disconnectAll();
+
+        Thread.sleep(200);
+
+        assertEquals(1, m_probe.destroyed.size());
+        assertEquals("Could not read from the connection",
+                     m_probe.destroyed.get(0));
+
+        assertFalse(channel.isConnected());
+    }
+
+    public void testLostConnectionIsOneEndpointFailure() throws Exception {
+        EndpointGroup group = new EndpointGroup().add("localhost", (short)PORT);
+        final EndpointGroup.Endpoint endpoint = group.getEndpoints().get(0);
+        final Channel[] channels = new Channel[6];
+        final AtomicInteger threads = new AtomicInteger();
+        final AtomicLong backoff = new AtomicLong();
+
+        for (int n = 0; n < channels.length; n++) {
+            channels[n] = new Channel();
+            channels[n].connect(group, "/migrate/" + n, ChannelMode.READWRITE);
+        }
+
+        // The first thread is the migrating one. It is created after the
+        // failure is recorded, and before any channel is re-opened.
+        HydnaThreads.setThreadFactory(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                if (threads.incrementAndGet() == 1) {
+                    backoff.set(endpoint.downUntil() - System.nanoTime());
+                }
+                return Executors.defaultThreadFactory().newThread(runnable);
+            }
+        });
+
+        m_server.disconnectAll();
+
+        for (int wait = 0; threads.get() == 0; wait++) {
+            assertTrue("connection not lost", wait < 50);
+            Thread.sleep(100);
+        }
+
+        for (int n = 0; n < channels.length; n++) {
+            for (int wait = 0; channels[n].isConnected() == false; wait++) {
+                assertTrue("channel " + n + " not migrated", wait < 50);
+                Thread.sleep(100);
+            }
+        }
+
+        // Down for the first backoff step only, not one step per channel.
+        assertTrue(backoff.get() > 0);
+        assertTrue(backoff.get() <= TimeUnit.SECONDS.toNanos(1));
+
+        // One migrating thread and one listening thread.
+        assertEquals(2, threads.get());
+
+        for (Channel channel : channels) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.hydna;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+
+import com.hydna.server.TestServer;
+
+/**
+ *  Tests what HydnaTrace records for the connection life cycle.
+ */
+public class HydnaTraceTest extends TestCase {
+
+    // The library parses ports as a signed short.
+    private static final int PORT = 7102;
+
+    // Shared by all tests. A stopped server can hold on to its port for
+    // a moment, so it is not restarted for every test.
+    private static TestServer m_server;
+
+    private ByteArrayOutputStream m_err;
+    private PrintStream m_systemErr;
+
+    protected void setUp() throws Exception {
+        if (m_server == null) {
+            m_server = new TestServer();
+            m_server.start(PORT);
+        }
+
+        m_err = new ByteArrayOutputStream();
+        m_systemErr = System.err;
+        System.setErr(new PrintStream(m_err, true));
+        HydnaTrace.clear();
+        HydnaTrace.setEnabled(true);
+        HydnaTrace.setDumpOnError(true);
+    }
+
+    protected void tearDown() throws Exception {
+        HydnaTrace.setDumpOnError(false);
+        HydnaTrace.setEnabled(false);
+        System.setErr(m_systemErr);
+        m_server.disconnectAll();
+    }
+
+    public void testCleanCloseTracesOneDestroy() throws Exception {
+        Channel channel = new Channel();
+
+        channel.connect("localhost:" + PORT + "/trace", ChannelMode.READWRITE);
+        channel.close();
+
+        Thread.sleep(200);
+
+        assertEquals(1, count(dump(), "DESTROY"));
+        assertEquals("dumped on a clean close", 0, m_err.size());
+    }
+
+    public void testRemoteDisconnectDumps() throws Exception {
+        Channel channel = new Channel();
+
+        channel.connect("localhost:" + PORT + "/trace", ChannelMode.READWRITE);
+        m_server.disconnectAll();
+
+        Thread.sleep(200);
+
+        assertEquals(1, count(dump(), "DESTROY"));
+        assertEquals(1, count(m_err.toString(), "DESTROY"));
+        assertFalse(channel.isConnected());
+    }
+
+    private static String dump() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        HydnaTrace.dump(new PrintStream(out, true));
+
+        return out.toString();
+    }
+
+    private static int count(String text, String word) {
+        int count = 0;
+        int i = 0;
+
+        while ((i = text.indexOf(word, i)) != -1) {
+            count++;
+            i += word.length();
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,167 @@
+package com.hydna;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.hydna.server.TestServer;
+
+/**
+ *  Tests that a PartitionedDispatcher survives failing handlers and key
+ *  extractors, against a local TestServer.
+ */
+public class PartitionedDispatcherTest extends TestCase {
+
+    // The library parses ports as a signed short.
+    private static final int PORT = 7103;
+
+    private static final int MESSAGES = 50;
+
+    // Shared by all tests. A stopped server can hold on to its port for
+    // a moment, so it is not restarted for every test.
+    private static TestServer m_server;
+
+    private static final class CountingHandler implements ChannelEventHandler {
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch ended = new CountDownLatch(1);
+        final boolean fail;
+
+        CountingHandler(boolean fail) {
+            this.fail = fail;
+        }
+
+        public void handleEvent(ChannelEvent event) {
+            if (event instanceof ChannelEndSignal) {
+                ended.countDown();
+                return;
+            }
+
+            handled.incrementAndGet();
+
+            if (fail) {
+                throw new Error("handler failed");
+            }
+        }
+
+        public void handleFailure(ChannelEvent event, Throwable error) {
+            failures.incrementAndGet();
+        }
+
+        public void handleError(ChannelError error) {
+        }
+    }
+
+    private Channel m_channel;
+
+    protected void setUp() throws Exception {
+        if (m_server == null) {
+            m_server = new TestServer();
+            m_server.start(PORT);
+        }
+
+        m_channel = new Channel();
+        m_channel.connect("localhost:" + PORT + "/dispatch",
+                          ChannelMode.READWRITE);
+    }
+
+    protected void tearDown() throws Exception {
+        m_server.disconnectAll();
+    }
+
+    public void testHandlerErrorKeepsLaneAlive() throws Exception {
+        CountingHandler handler = new CountingHandler(true);
+        PartitionedDispatcher dispatcher;
+
+        // Smaller than the number of messages, so that a dead lane would
+        // block the dispatcher.
+        dispatcher = new PartitionedDispatcher(m_channel,
+                                               new PayloadPrefixKey(1),
+                                               handler,
+                                               1,
+                                               4);
+        dispatcher.start();
+
+        sendAndClose();
+
+        assertTrue(handler.ended.await(5, TimeUnit.SECONDS));
+        assertEquals(MESSAGES, handler.handled.get());
+        assertEquals(MESSAGES, handler.failures.get());
+        assertTerminates(dispatcher);
+    }
+
+    public void testExtractorFailureIsReported() throws Exception {
+        CountingHandler handler = new CountingHandler(false);
+        PartitionedDispatcher dispatcher;
+
+        dispatcher = new PartitionedDispatcher(m_channel, new KeyExtractor() {
+            public Object extractKey(ChannelData data) {
+                throw new IllegalStateException("extractor failed");
+            }
+        }, handler, 2);
+        dispatcher.start();
+
+        sendAndClose();
+
+        assertTrue(handler.ended.await(5, TimeUnit.SECONDS));
+        assertEquals(0, handler.handled.get());
+        assertEquals(MESSAGES, handler.failures.get());
+        assertTerminates(dispatcher);
+    }
+
+    public void testStopAfterHandlerError() throws Exception {
+        CountingHandler handler = new CountingHandler(true);
+        PartitionedDispatcher dispatcher;
+
+        dispatcher = new PartitionedDispatcher(m_channel,
+                                               new PayloadPrefixKey(1),
+                                               handler,
+                                               1,
+                                               4);
+        dispatcher.start();
+
+        for (int n = 0; n < MESSAGES; n++) {
+            m_channel.send("k" + n);
+        }
+
+        for (int wait = 0; handler.failures.get() < MESSAGES; wait++) {
+            assertTrue("events not handled", wait < 50);
+            Thread.sleep(100);
+        }
+
+        dispatcher.stop();
+        assertTerminates(dispatcher);
+
+        m_channel.close();
+    }
+
+    private void sendAndClose() throws Exception {
+        for (int n = 0; n < MESSAGES; n++) {
+            m_channel.send("k" + n);
+        }
+
+        // Wait for the echoes before ending the channel.
+        Thread.sleep(200);
+
+        m_channel.close();
+    }
+
+    private static void assertTerminates(final PartitionedDispatcher dispatcher)
+        throws InterruptedException {
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    dispatcher.awaitTermination();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        waiter.start();
+        waiter.join(5000);
+
+        assertFalse("dispatcher did not terminate", waiter.isAlive());
+    }
+}